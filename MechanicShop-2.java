@@ -13,16 +13,85 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,8 +100,70 @@ import java.util.Scanner;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections, borrowed per statement
+	private ConnectionPool _pool = null;
+	//hands out primary keys in blocks reserved from DB sequences
+	private final KeyAllocator _keys = new KeyAllocator(this);
+	//service request counts per car, for ListKCarsWithTheMostServices
+	private final TopKServiceIndex _topK = new TopKServiceIndex(this,
+		Integer.getInteger("mechanicshop.topk.maxK", TopKServiceIndex.DEFAULT_MAX_K));
+	//runs the *Async methods, one thread per pooled connection
+	private final ThreadPoolExecutor _async = asyncExecutor (
+		Integer.getInteger ("mechanicshop.async.threads",
+			Integer.getInteger ("mechanicshop.pool.maxSize", ConnectionPool.DEFAULT_MAX_SIZE)));
+	//every VIN and its owner, off heap, loaded in the background by the constructor
+	private final VinIndex _vins = new VinIndex (this,
+		Boolean.parseBoolean (System.getProperty ("mechanicshop.vinIndex", "true")));
+	//customer names for prefix and Soundex search, built in the background by the constructor
+	private final NameIndex _names = new NameIndex (this,
+		Boolean.parseBoolean (System.getProperty ("mechanicshop.nameIndex", "true")));
+	//routes read-only queries to replicas, see ReplicaRouter; set up by the constructor
+	private ReplicaRouter _replicas;
+	//latency and throughput counters, see Metrics
+	private final Metrics _metrics = new Metrics ();
+	//statements over mechanicshop.slowQuery.millis, logged with their plans
+	private final SlowQueryLog _slowQueries = new SlowQueryLog (this,
+		Long.getLong ("mechanicshop.slowQuery.millis", SlowQueryLog.DEFAULT_THRESHOLD_MILLIS),
+		new File (System.getProperty ("mechanicshop.slowQuery.file", SlowQueryLog.DEFAULT_FILE)),
+		Long.getLong ("mechanicshop.slowQuery.maxBytes", SlowQueryLog.DEFAULT_MAX_BYTES),
+		Integer.getInteger ("mechanicshop.slowQuery.files", SlowQueryLog.DEFAULT_FILES));
+	//read-through caches for the front-desk lookups, see LookupCache
+	private final LookupCache<Integer> _customersById =
+		lookupCache ("customer by id", "SELECT * FROM Customer WHERE id = ?");
+	private final LookupCache<String> _customersByLname =
+		lookupCache ("customers by lname", "SELECT * FROM Customer WHERE lname = ?");
+	private final LookupCache<String> _carsByVin =
+		lookupCache ("car by vin", "SELECT * FROM Car WHERE vin = ?");
+	private final LookupCache<Integer> _ownedCars =
+		lookupCache ("owned cars", "SELECT C.model, C.vin FROM Car C, Owns O WHERE O.customer_id = ? AND O.car_vin = C.vin");
+	private final LookupCache<Integer> _mechanicsById =
+		lookupCache ("mechanic by id", "SELECT * FROM Mechanic WHERE id = ?");
+	//batches service requests for submitServiceRequest, started on first use
+	private IntakePipeline _intake = null;
+	//rows pulled per round trip when printing query results
+	private int _fetchSize = Integer.getInteger("mechanicshop.fetchSize", DEFAULT_FETCH_SIZE);
+	static final int DEFAULT_FETCH_SIZE = 1000;
+	//rows per page when a report is printed page by page
+	static final int REPORT_PAGE_SIZE = 1000;
+	//default report bounds, asked for by menu options 6-8
+	static final int BILL_THRESHOLD = 100;
+	static final int FLEET_THRESHOLD = 20;
+	static final int MILES_THRESHOLD = 50000;
+	static final int YEAR_THRESHOLD = 1995;
+	//closest names offered when a last name is not found, and the most a search returns
+	static final int NAME_SUGGESTIONS = 10;
+	static final int MAX_NAME_MATCHES = 100;
+	//whether printReport checks the plan for sequential scans the first time a report runs with given parameters
+	static final boolean EXPLAIN_REPORTS =
+		Boolean.parseBoolean(System.getProperty("mechanicshop.report.explain", "true"));
+	//tables with fewer rows than this are read with a sequential scan without a warning
+	static final long SEQ_SCAN_MIN_ROWS = Long.getLong("mechanicshop.report.seqScanMinRows", 10000);
+	//reports and parameters whose plan was already checked
+	private final Set<List<Object>> _explainedReports = Collections.synchronizedSet(new HashSet<List<Object>>());
+	//chars buffered before printed rows are flushed to standard out
+	static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	//port of server mode when none is given
+	static final int DEFAULT_HTTP_PORT = 8166;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -42,191 +173,5673 @@ public class MechanicShop{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// set up the pool and make sure a physical connection can be obtained
+	        this._pool = new ConnectionPool(url, user, passwd);
+	        this._pool.release(this._pool.borrow());
+			this._replicas = new ReplicaRouter(this._pool,
+				Long.getLong("mechanicshop.replica.maxLagMillis", ReplicaRouter.DEFAULT_MAX_LAG_MILLIS),
+				Long.getLong("mechanicshop.replica.stickyMillis", ReplicaRouter.DEFAULT_STICKY_MILLIS));
+			String replicas = System.getProperty("mechanicshop.replicas", "").trim();
+			for (String replica : replicas.isEmpty() ? new String[0] : replicas.split(",")) {
+				String replicaUrl = "jdbc:postgresql://" + replica.trim() + "/" + dbname;
+				System.out.println ("Read replica URL: " + replicaUrl);
+				this._replicas.addReplica(replicaUrl, user, passwd);
+			}
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
 	        System.exit(-1);
 		}
-	}
-	
-	/**
-	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-	 * 
-	 * @param sql the input SQL string
-	 * @throws java.sql.SQLException when update failed
-	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		try{
+			this._metrics.register();
+			long dumpSeconds = Long.getLong("mechanicshop.metrics.dumpSeconds", 0L);
+			if (dumpSeconds > 0) {
+				String file = System.getProperty("mechanicshop.metrics.file");
+				this._metrics.dumpEvery(dumpSeconds,
+					file == null ? System.err : new PrintStream(new FileOutputStream(file, true), true));
+			}
+		}catch(Exception e){
+			System.err.println("Warning - metrics are not published: " + e.getMessage());
+		}
+		try{
+			// adds the rollup tables and indexes this code maintains
+			Schema.migrate(this);
+		}catch(Exception e){
+			System.err.println("Error - Unable to Update the Database Schema: " + e.getMessage());
+	        System.exit(-1);
+		}
+		this._vins.reload();
+		this._names.reload();
+	}
+	
+	/**
+	 * Method to execute an update SQL statement.  Update SQL instructions
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * 
+	 * @param sql the input SQL string, with a ? for every bound value
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		int rows = -1;
+		// borrows a connection for this statement only
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			// looks up (or prepares) the statement for this template
+			PreparedStatement stmt = conn.statements.prepare (sql, params);
+
+			// issues the update instruction
+			rows = stmt.executeUpdate ();
+			this._replicas.wrote ();
+			return rows;
+		}finally{
+			recordStatement ("executeUpdate", sql, params, start, Math.max (rows, 0), 1, rows < 0);
+			this._pool.release (conn);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and outputs the results to
+	 * standard out.  Rows are fetched through a cursor, getFetchSize() at a
+	 * time, and printed through one buffered writer, so large reports
+	 * start printing right away and never sit in memory as a whole.
+	 * 
+	 * @param query the input query string, with a ? for every bound value
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		int printed = -1;
+		//borrows a connection for this query only
+		PooledConnection conn = this._pool.borrow ();
+		//the driver only fetches in chunks inside a transaction
+		boolean streaming = this._fetchSize > 0;
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE));
+		try {
+			if (streaming) conn.connection.setAutoCommit (false);
+
+			//looks up (or prepares) the statement for this template
+			PreparedStatement stmt = conn.statements.prepare (query, params);
+			stmt.setFetchSize (this._fetchSize);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+
+			/*
+			 *  obtains the metadata object for the returned result set.  The metadata
+			 *  contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+			int rowCount = 0;
+		
+			//iterates through the result set and output them to standard out.
+			boolean outputHeader = true;
+			while (rs.next()){
+				if(outputHeader){
+					for(int i = 1; i <= numCol; i++){
+						out.print(rsmd.getColumnName(i));
+						out.print('\t');
+				    }
+				    out.println();
+				    outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i){
+					out.print (rs.getString (i));
+					out.print ('\t');
+				}
+				out.println ();
+				++rowCount;
+			}//end while
+			rs.close ();
+			if (streaming) conn.connection.commit ();
+			printed = rowCount;
+			return rowCount;
+		}catch (SQLException e){
+			if (streaming) conn.connection.rollback ();
+			throw e;
+		}finally{
+			out.flush ();
+			//one round trip per fetch when streaming
+			long trips = 1 + (streaming && printed > 0 ? printed / this._fetchSize : 0);
+			recordStatement ("executeQueryAndPrintResult", query, params, start, Math.max (printed, 0), trips, printed < 0);
+			try {
+				if (streaming) conn.connection.setAutoCommit (true);
+			}finally{
+				this._pool.release (conn);
+			}
+		}
+	}
+
+	/**
+	 * Method to set how many rows executeQueryAndPrintResult pulls from the
+	 * server per round trip.  0 turns cursor fetching off, so the driver
+	 * reads the whole result before the first row prints.
+	 * 
+	 * @param fetchSize rows per fetch, or 0 to read everything at once
+	 */
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize < 0) throw new IllegalArgumentException("Fetch size can't be negative!");
+		this._fetchSize = fetchSize;
+	}
+
+	public int getFetchSize() {
+		return this._fetchSize;
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values
+	 * 
+	 * @param query the input query string, with a ? for every bound value
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		long start = System.nanoTime ();
+		List<List<String>> result = null;
+		//borrows a connection for this query only
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			//looks up (or prepares) the statement for this template 
+			PreparedStatement stmt = conn.statements.prepare (query, params); 
+		
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
+	 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+	 
+			//iterates through the result set and saves the data returned by the query. 
+			result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			rs.close (); 
+			return result;
+		}finally{
+			recordStatement ("executeQueryAndReturnResult", query, params, start, result == null ? 0 : result.size (), 1, result == null);
+			this._pool.release (conn);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results column by
+	 * column, with numeric columns kept as primitive arrays and text
+	 * columns dictionary encoded.
+	 * 
+	 * @param query the input query string, with a ? for every bound value
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the query result as a columnar container
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		return queryColumns (this._pool, "executeQueryAndReturnColumns", query, params);
+	}
+
+	private ColumnarResult queryColumns (ConnectionPool pool, String method, String query, Object[] params) throws SQLException {
+		long start = System.nanoTime ();
+		ColumnarResult result = null;
+		//borrows a connection for this query only
+		PooledConnection conn = pool.borrow ();
+		try {
+			//looks up (or prepares) the statement for this template
+			PreparedStatement stmt = conn.statements.prepare (query, params);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+			result = ColumnarResult.read (rs);
+			rs.close ();
+			return result;
+		}finally{
+			recordStatement (method, query, params, start, result == null ? 0 : result.getRowCount (), 1, result == null);
+			pool.release (conn);
+		}
+	}//end executeQueryAndReturnColumns
+
+	/**
+	 * Sends read-only queries (report pages and the name search fallback)
+	 * to read replicas, configured as mechanicshop.replicas=host:port,host:port and
+	 * reached with the primary's database name, user and password.
+	 *
+	 * A replica is used only while its replay lag is within
+	 * mechanicshop.replica.maxLagMillis.  The lag is checked every
+	 * LAG_CHECK_MILLIS by a background timer per replica, and readers only
+	 * look at the last answer: a replica that lags, is not in recovery at
+	 * all, or has not answered a check for STALE_MILLIS (unreachable, or
+	 * slow to connect) is skipped and reads fall back to the primary
+	 * without waiting.  Replica connections give up connecting after
+	 * mechanicshop.replica.connectTimeout seconds.  A thread that wrote
+	 * within mechanicshop.replica.stickyMillis reads from the primary, so a
+	 * menu's report includes the request it just closed.  That window is
+	 * per thread, and server requests run on any worker, so lookups that
+	 * must see a write just made (the lookup caches, which keep results for
+	 * their whole ttl and share them with every client) always read the
+	 * primary.  Healthy replicas are taken round robin.
+	 */
+	public static class ReplicaRouter {
+		static final long DEFAULT_MAX_LAG_MILLIS = 1000;
+		static final long DEFAULT_STICKY_MILLIS = 5000;
+		static final long LAG_CHECK_MILLIS = 1000;
+		//a lag older than this is not trusted
+		static final long STALE_MILLIS = 3 * LAG_CHECK_MILLIS;
+		static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 2;
+		//ms the replica is behind; 0 when it has replayed all it received, NULL on a primary
+		static final String LAG_QUERY =
+			"SELECT CASE WHEN NOT pg_is_in_recovery() THEN NULL " +
+			"WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+			"ELSE CAST(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 AS BIGINT) END";
+
+		static class Replica {
+			final String url;
+			final ConnectionPool pool;
+			//-1 until checked, or while the replica is unusable
+			volatile long lagMillis = -1;
+			volatile long checkedAt = 0;
+			final AtomicLong reads = new AtomicLong();
+			final Timer checker;
+
+			Replica(String url, ConnectionPool pool) {
+				this.url = url;
+				this.pool = pool;
+				this.checker = new Timer("replica-lag " + url, true);
+			}
+		}
+
+		private final ConnectionPool primary;
+		private final List<Replica> replicas = new ArrayList<Replica>();
+		private final long maxLagMillis;
+		private final long stickyMillis;
+		private final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicLong primaryReads = new AtomicLong();
+		private final AtomicLong stickyReads = new AtomicLong();
+
+		ReplicaRouter(ConnectionPool primary, long maxLagMillis, long stickyMillis) {
+			this.primary = primary;
+			this.maxLagMillis = maxLagMillis;
+			this.stickyMillis = stickyMillis;
+		}
+
+		void addReplica(String url, String user, String passwd) {
+			int timeout = Integer.getInteger("mechanicshop.replica.connectTimeout", DEFAULT_CONNECT_TIMEOUT_SECONDS);
+			//bounds how long an unreachable replica holds up a check or a read
+			String bounded = url + (url.contains("?") ? "&" : "?") +
+				"connectTimeout=" + timeout + "&loginTimeout=" + timeout;
+			final Replica replica = new Replica(url, new ConnectionPool(bounded, user, passwd));
+			replicas.add(replica);
+			replica.checker.schedule(new TimerTask() {
+				public void run() {
+					replica.lagMillis = lag(replica);
+					replica.checkedAt = System.currentTimeMillis();
+				}
+			}, 0, LAG_CHECK_MILLIS);
+		}
+
+		/**
+		 * Notes that the calling thread just wrote to the primary.
+		 */
+		void wrote() {
+			if (!replicas.isEmpty()) lastWrite.set(System.currentTimeMillis());
+		}
+
+		/**
+		 * Returns the calling thread's last write time (or null) and
+		 * replaces it with `wrote`, so async tasks keep their caller's
+		 * read-your-writes window.
+		 */
+		Long adoptLastWrite(Long wrote) {
+			Long previous = lastWrite.get();
+			lastWrite.set(wrote);
+			return previous;
+		}
+
+		Long lastWrite() {
+			return lastWrite.get();
+		}
+
+		/**
+		 * Returns the pool the next read should use.
+		 */
+		ConnectionPool route() {
+			if (replicas.isEmpty()) return primary;
+			long now = System.currentTimeMillis();
+			Long wrote = lastWrite.get();
+			if (wrote != null && now - wrote < stickyMillis) {
+				stickyReads.incrementAndGet();
+				return primary;
+			}
+			int first = next.getAndIncrement();
+			for (int i = 0; i < replicas.size(); ++i) {
+				Replica replica = replicas.get(Math.floorMod(first + i, replicas.size()));
+				if (current(replica, now)) {
+					replica.reads.incrementAndGet();
+					return replica.pool;
+				}
+			}
+			primaryReads.incrementAndGet();
+			return primary;
+		}
+
+		//true when the replica's last known lag is recent and within bounds
+		private boolean current(Replica replica, long now) {
+			return now - replica.checkedAt <= STALE_MILLIS &&
+				replica.lagMillis >= 0 && replica.lagMillis <= maxLagMillis;
+		}
+
+		private static long lag(Replica replica) {
+			try {
+				PooledConnection conn = replica.pool.borrow();
+				try {
+					PreparedStatement stmt = conn.statements.prepare(LAG_QUERY);
+					stmt.setQueryTimeout((int) (STALE_MILLIS / 1000));
+					ResultSet rs = stmt.executeQuery();
+					rs.next();
+					long lag = rs.getLong(1);
+					boolean primary = rs.wasNull();
+					rs.close();
+					return primary ? -1 : Math.max(lag, 0);
+				}finally{
+					replica.pool.release(conn);
+				}
+			}catch (SQLException e){
+				return -1;
+			}
+		}
+
+		void close() {
+			for (Replica replica : replicas) {
+				replica.checker.cancel();
+				replica.pool.close();
+			}
+		}
+
+		public String toString() {
+			StringBuilder stats = new StringBuilder("primary reads: " + primaryReads.get() + ", sticky reads: " + stickyReads.get());
+			for (Replica replica : replicas)
+				stats.append(", ").append(replica.url).append(" reads: ").append(replica.reads.get())
+					.append(" lag: ").append(replica.lagMillis < 0 ? "unusable" : replica.lagMillis + " ms")
+					.append(System.currentTimeMillis() - replica.checkedAt > STALE_MILLIS ? " (not answering)" : "");
+			return stats.toString();
+		}
+	}
+
+	/**
+	 * Method to execute a read-only query, on a replica when one is
+	 * configured and current enough (see ReplicaRouter), else on the
+	 * primary.
+	 * 
+	 * @return the query result as a columnar container
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeReadQuery (String query, Object... params) throws SQLException {
+		return queryColumns (this._replicas.route (), "executeReadQuery", query, params);
+	}
+
+	/**
+	 * Method to report where reads went and how far behind the replicas are.
+	 */
+	public String getReplicaStats () {
+		return this._replicas.toString ();
+	}
+
+	/**
+	 * Method to run a query on a connection the caller already holds, e.g.
+	 * inside a transaction it opened.
+	 * 
+	 * @return the query result as a columnar container
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	ColumnarResult queryOn (PooledConnection conn, String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		ColumnarResult result = null;
+		try {
+			ResultSet rs = conn.statements.prepare (query, params).executeQuery ();
+			result = ColumnarResult.read (rs);
+			rs.close ();
+			return result;
+		}finally{
+			recordStatement ("queryOn", query, params, start, result == null ? 0 : result.getRowCount (), 1, result == null);
+		}
+	}
+
+	/**
+	 * A query result stored column by column.  INTEGER/SMALLINT columns are
+	 * kept in int[], BIGINT in long[] and NUMERIC/REAL/DOUBLE in double[],
+	 * so numbers such as bill, odometer, year and rid are never boxed or
+	 * turned into strings.  Every other column is stored as int codes into
+	 * a per-column dictionary, which keeps one copy of each distinct value
+	 * of low-cardinality text like make and model.  NULLs are tracked in a
+	 * bitmap per column.
+	 */
+	public static class ColumnarResult {
+		public enum Type { INT, LONG, DOUBLE, STRING }
+
+		private static final int INITIAL_CAPACITY = 64;
+
+		private final String[] names;
+		private final Type[] types;
+		//int[], long[] or double[] per column; int[] codes for STRING
+		private final Object[] values;
+		private final long[][] nulls;
+		private final List<List<String>> dictionaries = new ArrayList<List<String>>();
+		private int rowCount = 0;
+		private int capacity = INITIAL_CAPACITY;
+
+		private ColumnarResult(ResultSetMetaData rsmd) throws SQLException {
+			int numCol = rsmd.getColumnCount();
+			names = new String[numCol];
+			types = new Type[numCol];
+			values = new Object[numCol];
+			nulls = new long[numCol][];
+			for (int i = 0; i < numCol; ++i) {
+				names[i] = rsmd.getColumnName(i + 1);
+				types[i] = typeOf(rsmd.getColumnType(i + 1));
+				switch (types[i]) {
+					case LONG: values[i] = new long[INITIAL_CAPACITY]; break;
+					case DOUBLE: values[i] = new double[INITIAL_CAPACITY]; break;
+					default: values[i] = new int[INITIAL_CAPACITY]; break;
+				}
+				nulls[i] = new long[(INITIAL_CAPACITY + 63) / 64];
+				dictionaries.add(types[i] == Type.STRING ? new ArrayList<String>() : null);
+			}
+		}
+
+		/**
+		 * Reads every remaining row of a result set.
+		 */
+		static ColumnarResult read(ResultSet rs) throws SQLException {
+			ColumnarResult result = new ColumnarResult(rs.getMetaData());
+			int numCol = result.names.length;
+			//value -> code, only needed while the result is being built
+			List<Map<String, Integer>> codes = new ArrayList<Map<String, Integer>>();
+			for (int i = 0; i < numCol; ++i)
+				codes.add(result.types[i] == Type.STRING ? new HashMap<String, Integer>() : null);
+
+			while (rs.next()) {
+				int row = result.rowCount;
+				result.ensureCapacity(row + 1);
+				for (int i = 0; i < numCol; ++i) {
+					switch (result.types[i]) {
+						case INT:
+							((int[]) result.values[i])[row] = rs.getInt(i + 1);
+							break;
+						case LONG:
+							((long[]) result.values[i])[row] = rs.getLong(i + 1);
+							break;
+						case DOUBLE:
+							((double[]) result.values[i])[row] = rs.getDouble(i + 1);
+							break;
+						default:
+							String value = rs.getString(i + 1);
+							if (value == null) break;
+							Integer code = codes.get(i).get(value);
+							if (code == null) {
+								List<String> dictionary = result.dictionaries.get(i);
+								code = dictionary.size();
+								dictionary.add(value);
+								codes.get(i).put(value, code);
+							}
+							((int[]) result.values[i])[row] = code;
+							break;
+					}
+					if (rs.wasNull())
+						result.nulls[i][row >>> 6] |= 1L << row;
+				}
+				++result.rowCount;
+			}
+			return result;
+		}
+
+		private static Type typeOf(int sqlType) {
+			switch (sqlType) {
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+					return Type.INT;
+				case Types.BIGINT:
+					return Type.LONG;
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+					return Type.DOUBLE;
+				default:
+					return Type.STRING;
+			}
+		}
+
+		private void ensureCapacity(int rows) {
+			if (rows <= capacity) return;
+			int grown = Math.max(rows, capacity * 2);
+			for (int i = 0; i < names.length; ++i) {
+				if (values[i] instanceof long[]) values[i] = Arrays.copyOf((long[]) values[i], grown);
+				else if (values[i] instanceof double[]) values[i] = Arrays.copyOf((double[]) values[i], grown);
+				else values[i] = Arrays.copyOf((int[]) values[i], grown);
+				nulls[i] = Arrays.copyOf(nulls[i], (grown + 63) / 64);
+			}
+			capacity = grown;
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		public int getColumnCount() {
+			return names.length;
+		}
+
+		public String getColumnName(int col) {
+			return names[col];
+		}
+
+		public Type getType(int col) {
+			return types[col];
+		}
+
+		/**
+		 * Returns the index of a column by (case-insensitive) name, or -1.
+		 */
+		public int findColumn(String name) {
+			for (int i = 0; i < names.length; ++i)
+				if (names[i].equalsIgnoreCase(name)) return i;
+			return -1;
+		}
+
+		public boolean isNull(int row, int col) {
+			return (nulls[col][row >>> 6] & (1L << row)) != 0;
+		}
+
+		public int getInt(int row, int col) {
+			switch (types[col]) {
+				case INT: return ((int[]) values[col])[row];
+				case LONG: return (int) ((long[]) values[col])[row];
+				case DOUBLE: return (int) ((double[]) values[col])[row];
+				default: return isNull(row, col) ? 0 : Integer.parseInt(getString(row, col).trim());
+			}
+		}
+
+		public long getLong(int row, int col) {
+			switch (types[col]) {
+				case INT: return ((int[]) values[col])[row];
+				case LONG: return ((long[]) values[col])[row];
+				case DOUBLE: return (long) ((double[]) values[col])[row];
+				default: return isNull(row, col) ? 0 : Long.parseLong(getString(row, col).trim());
+			}
+		}
+
+		public double getDouble(int row, int col) {
+			switch (types[col]) {
+				case INT: return ((int[]) values[col])[row];
+				case LONG: return ((long[]) values[col])[row];
+				case DOUBLE: return ((double[]) values[col])[row];
+				default: return isNull(row, col) ? 0 : Double.parseDouble(getString(row, col).trim());
+			}
+		}
+
+		public String getString(int row, int col) {
+			if (isNull(row, col)) return null;
+			switch (types[col]) {
+				case INT: return String.valueOf(((int[]) values[col])[row]);
+				case LONG: return String.valueOf(((long[]) values[col])[row]);
+				case DOUBLE: return String.valueOf(((double[]) values[col])[row]);
+				default: return dictionaries.get(col).get(((int[]) values[col])[row]);
+			}
+		}
+
+		/**
+		 * Raw column arrays for tight loops.  They may be longer than
+		 * getRowCount(); entries of NULL cells are 0.
+		 */
+		public int[] getIntColumn(int col) {
+			if (types[col] != Type.INT) throw new IllegalArgumentException(names[col] + " is not an INT column");
+			return (int[]) values[col];
+		}
+
+		public long[] getLongColumn(int col) {
+			if (types[col] != Type.LONG) throw new IllegalArgumentException(names[col] + " is not a LONG column");
+			return (long[]) values[col];
+		}
+
+		public double[] getDoubleColumn(int col) {
+			if (types[col] != Type.DOUBLE) throw new IllegalArgumentException(names[col] + " is not a DOUBLE column");
+			return (double[]) values[col];
+		}
+
+		/**
+		 * Dictionary codes of a STRING column; getDictionary(col).get(code)
+		 * is the value.
+		 */
+		public int[] getCodeColumn(int col) {
+			if (types[col] != Type.STRING) throw new IllegalArgumentException(names[col] + " is not a STRING column");
+			return (int[]) values[col];
+		}
+
+		public List<String> getDictionary(int col) {
+			return Collections.unmodifiableList(dictionaries.get(col));
+		}
+
+		public Row row(int row) {
+			if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+			return new Row(row);
+		}
+
+		/**
+		 * A view of one row; it reads straight from the column arrays.
+		 */
+		public class Row {
+			private final int row;
+
+			private Row(int row) {
+				this.row = row;
+			}
+
+			public int getIndex() { return row; }
+			public boolean isNull(int col) { return ColumnarResult.this.isNull(row, col); }
+			public int getInt(int col) { return ColumnarResult.this.getInt(row, col); }
+			public long getLong(int col) { return ColumnarResult.this.getLong(row, col); }
+			public double getDouble(int col) { return ColumnarResult.this.getDouble(row, col); }
+			public String getString(int col) { return ColumnarResult.this.getString(row, col); }
+			public int getInt(String name) { return getInt(column(name)); }
+			public long getLong(String name) { return getLong(column(name)); }
+			public double getDouble(String name) { return getDouble(column(name)); }
+			public String getString(String name) { return getString(column(name)); }
+
+			private int column(String name) {
+				int col = findColumn(name);
+				if (col < 0) throw new IllegalArgumentException("No column named " + name);
+				return col;
+			}
+		}
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the number of results
+	 * 
+	 * @param query the input query string, with a ? for every bound value
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime ();
+		int counted = -1;
+		//borrows a connection for this query only
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			//looks up (or prepares) the statement for this template
+			PreparedStatement stmt = conn.statements.prepare (query, params);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+
+			rs.close ();
+			counted = rowCount;
+			return rowCount;
+		}finally{
+			recordStatement ("executeQuery", query, params, start, Math.max (counted, 0), 1, counted < 0);
+			this._pool.release (conn);
+		}
+	}
+
+	/**
+	 * Method to test whether a query returns at least one row.  The query
+	 * is wrapped as SELECT EXISTS(...), so the DBMS stops at the first
+	 * matching row and only a single boolean comes back.
+	 * 
+	 * @param query the input query string, with a ? for every bound value
+	 * @param params the values bound to the ? placeholders, in order
+	 * @return true when the query has at least one row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean exists (String query, Object... params) throws SQLException {
+		return existsEach (new Probe (query, params))[0];
+	}
+
+	/**
+	 * Method to run several existence probes in one round trip.  The probes
+	 * become one SELECT EXISTS(...), EXISTS(...), ... statement.
+	 * 
+	 * @param probes the queries to test, each with its own bound values
+	 * @return one flag per probe, in the same order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean[] existsEach (Probe... probes) throws SQLException {
+		StringBuilder query = new StringBuilder ("SELECT ");
+		List<Object> params = new ArrayList<Object> ();
+		for (int i = 0; i < probes.length; ++i) {
+			if (i > 0) query.append (", ");
+			query.append ("EXISTS(").append (probes[i].query).append (")");
+			params.addAll (Arrays.asList (probes[i].params));
+		}
+
+		long start = System.nanoTime ();
+		boolean[] found = null;
+		//borrows a connection for this query only
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			//looks up (or prepares) the statement for this template
+			PreparedStatement stmt = conn.statements.prepare (query.toString (), params.toArray ());
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+			found = new boolean[probes.length];
+			if (rs.next ()) {
+				for (int i = 0; i < probes.length; ++i)
+					found[i] = rs.getBoolean (i + 1);
+			}
+			rs.close ();
+			return found;
+		}finally{
+			recordStatement ("existsEach", query.toString (), params.toArray (), start, 1, 1, found == null);
+			this._pool.release (conn);
+		}
+	}
+
+	/**
+	 * One existence check for existsEach: a query and its bound values.
+	 */
+	public static class Probe {
+		final String query;
+		final Object[] params;
+
+		public Probe(String query, Object... params) {
+			this.query = query;
+			this.params = params;
+		}
+	}
+	
+	/**
+	 * Method to run a task on the async executor, which is sized like the
+	 * connection pool so that tasks do not queue up behind each other for
+	 * connections.  Statements the task runs still count towards the
+	 * caller's operation in the metrics, and it reads its caller's writes.
+	 * 
+	 * @param task the work to run, typically one or more execute* calls
+	 * @return completes with the task's result, or with what it threw
+	 */
+	public <T> CompletableFuture<T> async (final Callable<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<T> ();
+		final Metrics.Scope caller = this._metrics.current ();
+		final Long callerWrote = this._replicas.lastWrite ();
+		try {
+			this._async.execute (new Runnable () {
+				public void run () {
+					Metrics.Scope previous = _metrics.adopt (caller);
+					Long previousWrote = _replicas.adoptLastWrite (callerWrote);
+					try {
+						result.complete (task.call ());
+					}catch (Throwable e){
+						result.completeExceptionally (e);
+					}finally{
+						_metrics.adopt (previous);
+						_replicas.adoptLastWrite (previousWrote);
+					}
+				}
+			});
+		}catch (RejectedExecutionException e){
+			result.completeExceptionally (e);
+		}
+		return result;
+	}
+
+	/**
+	 * Method to execute an update SQL statement on the async executor.
+	 * 
+	 * @return completes with the number of rows affected
+	 */
+	public CompletableFuture<Integer> executeUpdateAsync (final String sql, final Object... params) {
+		return async (new Callable<Integer> () {
+			public Integer call () throws SQLException {
+				return executeUpdate (sql, params);
+			}
+		});
+	}
+
+	/**
+	 * Method to execute a query on the async executor.
+	 * 
+	 * @return completes with the query result as a list of records
+	 */
+	public CompletableFuture<List<List<String>>> executeQueryAndReturnResultAsync (final String query, final Object... params) {
+		return async (new Callable<List<List<String>>> () {
+			public List<List<String>> call () throws SQLException {
+				return executeQueryAndReturnResult (query, params);
+			}
+		});
+	}
+
+	/**
+	 * Method to execute a query on the async executor.
+	 * 
+	 * @return completes with the query result as a columnar container
+	 */
+	public CompletableFuture<ColumnarResult> executeQueryAndReturnColumnsAsync (final String query, final Object... params) {
+		return async (new Callable<ColumnarResult> () {
+			public ColumnarResult call () throws SQLException {
+				return executeQueryAndReturnColumns (query, params);
+			}
+		});
+	}
+
+	/**
+	 * Method to run existence probes on the async executor.
+	 * 
+	 * @return completes with one flag per probe, in the same order
+	 */
+	public CompletableFuture<boolean[]> existsEachAsync (final Probe... probes) {
+		return async (new Callable<boolean[]> () {
+			public boolean[] call () throws SQLException {
+				return existsEach (probes);
+			}
+		});
+	}
+
+	/**
+	 * Method to wait for an async result, rethrowing an SQLException the
+	 * task threw as itself.
+	 * 
+	 * @throws java.sql.SQLException when the task failed with one
+	 */
+	public static <T> T await (CompletableFuture<T> result) throws SQLException {
+		try {
+			return result.join ();
+		}catch (CompletionException e){
+			if (e.getCause () instanceof SQLException) throw (SQLException) e.getCause ();
+			if (e.getCause () instanceof RuntimeException) throw (RuntimeException) e.getCause ();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to fetch the last value from sequence. This
+	 * method issues the query to the DBMS and returns the current 
+	 * value of sequence used for autogenerated keys.  Postgres keeps
+	 * currval per session, so it only reflects nextval calls that ran on
+	 * the same pooled connection.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return current value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	
+	public int getCurrSeqVal(String sequence) throws SQLException {
+		long start = System.nanoTime ();
+		boolean failed = true;
+		//borrows a connection for this query only
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			PreparedStatement stmt = conn.statements.prepare ("Select currval(CAST(? AS regclass))", sequence);
+			
+			ResultSet rs = stmt.executeQuery ();
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			rs.close ();
+			failed = false;
+			return value;
+		}finally{
+			this._metrics.statement ("getCurrSeqVal", start, 1, 1, failed);
+			this._pool.release (conn);
+		}
+	}
+
+	/**
+	 * Method to advance a sequence and fetch its new value. This
+	 * method issues the query to the DBMS and returns the next
+	 * value of sequence used for autogenerated keys
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return next value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int getNextSeqVal(String sequence) throws SQLException {
+		long start = System.nanoTime ();
+		boolean failed = true;
+		//borrows a connection for this query only
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			PreparedStatement stmt = conn.statements.prepare ("Select nextval(CAST(? AS regclass))", sequence);
+			
+			ResultSet rs = stmt.executeQuery ();
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			rs.close ();
+			failed = false;
+			return value;
+		}finally{
+			this._metrics.statement ("getNextSeqVal", start, 1, 1, failed);
+			this._pool.release (conn);
+		}
+	}
+
+	/**
+	 * Latency and throughput counters, kept per execute* method and per
+	 * shop operation (menu option or HTTP route).  Each name gets a call
+	 * count, an error count, a latency histogram and the statements, round
+	 * trips and rows it accounted for; the statements an execute* method
+	 * runs are also charged to the operation running on the same thread,
+	 * so a slow close can be told apart into validation and insert work.
+	 *
+	 * Everything is lock free on the recording side (atomic counters), so
+	 * recording costs a couple of nanoTime calls and a few increments.
+	 * The counters are published as the JMX MBean mechanicshop:type=Metrics
+	 * and, when mechanicshop.metrics.dumpSeconds is set, dumped as text
+	 * every that many seconds to mechanicshop.metrics.file (or stderr).
+	 */
+	public static class Metrics implements MetricsMBean {
+		static final String OBJECT_NAME = "mechanicshop:type=Metrics";
+
+		/**
+		 * Counts values in log-linear buckets: 8 buckets per power of two,
+		 * so a reported percentile is within 1/8 of the true value, in a
+		 * fixed 496 longs whatever the range.
+		 */
+		static class Histogram {
+			private static final int SUB_BITS = 3;
+			private static final int SUB_BUCKETS = 1 << SUB_BITS;
+			private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+			private final AtomicLong max = new AtomicLong();
+
+			static int bucket(long value) {
+				if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+				int exp = 63 - Long.numberOfLeadingZeros(value);
+				int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+				return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+			}
+
+			//the largest value that falls in a bucket
+			static long highest(int bucket) {
+				if (bucket < SUB_BUCKETS) return bucket;
+				int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+				long width = 1L << (exp - SUB_BITS);
+				return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+			}
+
+			void record(long value) {
+				counts.incrementAndGet(bucket(value));
+				long seen;
+				while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) { }
+			}
+
+			/**
+			 * Returns the value below which `percentile` percent of the
+			 * recorded values fall, or 0 when nothing was recorded.
+			 */
+			long percentile(double percentile) {
+				long total = 0;
+				for (int i = 0; i < counts.length(); ++i)
+					total += counts.get(i);
+				if (total == 0) return 0;
+				long rank = (long) Math.ceil(total * percentile / 100.0);
+				long seen = 0;
+				for (int i = 0; i < counts.length(); ++i) {
+					seen += counts.get(i);
+					if (seen >= Math.max(rank, 1)) return Math.min(highest(i), max.get());
+				}
+				return max.get();
+			}
+
+			long max() {
+				return max.get();
+			}
+
+			boolean isEmpty() {
+				for (int i = 0; i < counts.length(); ++i)
+					if (counts.get(i) > 0) return false;
+				return true;
+			}
+		}
+
+		/**
+		 * The counters of one name.
+		 */
+		static class Stats {
+			final Histogram nanos = new Histogram();
+			final AtomicLong calls = new AtomicLong();
+			final AtomicLong errors = new AtomicLong();
+			final AtomicLong statements = new AtomicLong();
+			final AtomicLong roundTrips = new AtomicLong();
+			final AtomicLong rows = new AtomicLong();
+		}
+
+		/**
+		 * One running operation, from begin to end, on one thread.
+		 */
+		public class Scope {
+			private final String name;
+			private final Scope outer;
+			//false for operations that wait on a person, whose latency says nothing
+			private final boolean timed;
+			private final long start = System.nanoTime();
+			//atomic because async tasks of the operation add to them too
+			final AtomicLong statements = new AtomicLong();
+			final AtomicLong roundTrips = new AtomicLong();
+			final AtomicLong rows = new AtomicLong();
+			final AtomicLong errors = new AtomicLong();
+
+			Scope(String name, Scope outer, boolean timed) {
+				this.name = name;
+				this.outer = outer;
+				this.timed = timed;
+			}
+
+			/**
+			 * Records the operation; failed or not, it also counts as an
+			 * error when one of its statements failed.
+			 */
+			public void end(boolean failed) {
+				current.set(outer);
+				Stats stats = stats(name);
+				if (timed) stats.nanos.record(System.nanoTime() - start);
+				stats.calls.incrementAndGet();
+				if (failed || errors.get() > 0) stats.errors.incrementAndGet();
+				stats.statements.addAndGet(statements.get());
+				stats.roundTrips.addAndGet(roundTrips.get());
+				stats.rows.addAndGet(rows.get());
+			}
+		}
+
+		private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+		private final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+		private Timer dump = null;
+
+		private Stats stats(String name) {
+			Stats found = stats.get(name);
+			if (found == null) {
+				stats.putIfAbsent(name, new Stats());
+				found = stats.get(name);
+			}
+			return found;
+		}
+
+		/**
+		 * Starts timing an operation on the calling thread; statements run
+		 * until the returned scope ends are charged to it.
+		 */
+		public Scope begin(String operation) {
+			return begin(operation, true);
+		}
+
+		/**
+		 * Starts an operation whose statements are counted but whose
+		 * latency is not, e.g. a menu option that includes the prompts.
+		 */
+		public Scope beginUntimed(String operation) {
+			return begin(operation, false);
+		}
+
+		private Scope begin(String operation, boolean timed) {
+			Scope scope = new Scope(operation, current.get(), timed);
+			current.set(scope);
+			return scope;
+		}
+
+		/**
+		 * Records one statement run by an execute* method.
+		 * 
+		 * @param method the execute* method
+		 * @param start System.nanoTime() when the statement started
+		 * @param rows rows returned or affected
+		 * @param roundTrips messages exchanged with the server
+		 * @param failed whether the statement threw
+		 */
+		void statement(String method, long start, long rows, long roundTrips, boolean failed) {
+			Stats stats = stats(method);
+			stats.nanos.record(System.nanoTime() - start);
+			stats.calls.incrementAndGet();
+			stats.statements.incrementAndGet();
+			stats.roundTrips.addAndGet(roundTrips);
+			stats.rows.addAndGet(rows);
+			if (failed) stats.errors.incrementAndGet();
+			Scope scope = current.get();
+			if (scope != null) {
+				scope.statements.incrementAndGet();
+				scope.roundTrips.addAndGet(roundTrips);
+				scope.rows.addAndGet(rows);
+				if (failed) scope.errors.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Returns the operation running on the calling thread, or null.
+		 */
+		Scope current() {
+			return current.get();
+		}
+
+		/**
+		 * Charges the calling thread's statements to `scope` (which may be
+		 * null) and returns the scope it replaced.
+		 */
+		Scope adopt(Scope scope) {
+			Scope previous = current.get();
+			current.set(scope);
+			return previous;
+		}
+
+		public String[] getNames() {
+			String[] names = stats.keySet().toArray(new String[0]);
+			Arrays.sort(names);
+			return names;
+		}
+
+		public long getCalls(String name) {
+			return stats(name).calls.get();
+		}
+
+		public long getErrors(String name) {
+			return stats(name).errors.get();
+		}
+
+		public long getStatements(String name) {
+			return stats(name).statements.get();
+		}
+
+		public long getRoundTrips(String name) {
+			return stats(name).roundTrips.get();
+		}
+
+		public long getRows(String name) {
+			return stats(name).rows.get();
+		}
+
+		public double getLatencyMillis(String name, double percentile) {
+			return stats(name).nanos.percentile(percentile) / 1e6;
+		}
+
+		public void reset() {
+			stats.clear();
+		}
+
+		/**
+		 * One line per name: calls, errors, statements, round trips, rows
+		 * and p50/p99/max latency, or "-" for names that are not timed.
+		 */
+		public String getReport() {
+			StringBuilder report = new StringBuilder(String.format("%-48s %9s %7s %9s %9s %10s %9s %9s %9s%n",
+				"name", "calls", "errors", "stmts", "trips", "rows", "p50 ms", "p99 ms", "max ms"));
+			for (String name : getNames()) {
+				Stats s = stats(name);
+				report.append(String.format("%-48s %9d %7d %9d %9d %10d ", name,
+					s.calls.get(), s.errors.get(), s.statements.get(), s.roundTrips.get(), s.rows.get()));
+				if (s.nanos.isEmpty())
+					report.append(String.format("%9s %9s %9s%n", "-", "-", "-"));
+				else
+					report.append(String.format("%9.3f %9.3f %9.3f%n",
+						s.nanos.percentile(50) / 1e6, s.nanos.percentile(99) / 1e6, s.nanos.max() / 1e6));
+			}
+			return report.toString();
+		}
+
+		/**
+		 * Registers the counters with the platform MBean server.
+		 */
+		void register() throws JMException {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			//the last MechanicShop created in the JVM is the one published
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(this, name);
+		}
+
+		/**
+		 * Prints getReport() to `out` every `seconds` seconds.
+		 */
+		synchronized void dumpEvery(long seconds, final PrintStream out) {
+			if (dump != null) dump.cancel();
+			dump = new Timer("metrics-dump", true);
+			dump.schedule(new TimerTask() {
+				public void run() {
+					out.println(new java.util.Date() + "\n" + getReport());
+					out.flush();
+				}
+			}, seconds * 1000, seconds * 1000);
+		}
+	}
+
+	/**
+	 * What the Metrics MBean publishes over JMX.
+	 */
+	public interface MetricsMBean {
+		String[] getNames();
+		String getReport();
+		long getCalls(String name);
+		long getErrors(String name);
+		long getStatements(String name);
+		long getRoundTrips(String name);
+		long getRows(String name);
+		double getLatencyMillis(String name, double percentile);
+		void reset();
+	}
+
+	/**
+	 * Method to reach the latency and throughput counters.
+	 */
+	public Metrics getMetrics () {
+		return this._metrics;
+	}
+
+	/**
+	 * Logs statements that run longer than a threshold.  The hot path only
+	 * compares the elapsed time and, for a slow statement, queues it; one
+	 * background thread then explains it on a pooled connection and
+	 * appends the SQL template, bound parameters, row count, latency and
+	 * plan to a log file that is rotated by size.
+	 *
+	 * Queries get EXPLAIN (ANALYZE, BUFFERS), which runs them again, in a
+	 * transaction that is rolled back.  Statements that write get a plain
+	 * EXPLAIN: running them again would fail on the keys they already
+	 * inserted, or take row locks and use up sequence values.  DDL, EXPLAIN
+	 * itself and statements calling nextval, setval or advisory locks are
+	 * logged without a plan.  When the queue is full, slow statements are
+	 * counted and dropped rather than slowing the caller down.
+	 */
+	public static class SlowQueryLog {
+		static final long DEFAULT_THRESHOLD_MILLIS = 500;
+		static final String DEFAULT_FILE = "mechanicshop-slow.log";
+		static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+		static final int DEFAULT_FILES = 5;
+		static final int QUEUE_SIZE = 100;
+
+		private final MechanicShop esql;
+		private final long thresholdNanos;
+		private final File file;
+		private final long maxBytes;
+		private final int files;
+		private final ThreadPoolExecutor writer;
+		private final AtomicLong logged = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+
+		SlowQueryLog(MechanicShop esql, long thresholdMillis, File file, long maxBytes, int files) {
+			this.esql = esql;
+			this.thresholdNanos = thresholdMillis * 1000000L;
+			this.file = file;
+			this.maxBytes = maxBytes;
+			this.files = files;
+			this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "slow-query-log");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+		}
+
+		/**
+		 * Queues the statement for logging when it took at least the
+		 * threshold.  A threshold of 0 turns the log off.
+		 */
+		void check(final String method, final String sql, final Object[] params, final long nanos, final long rows) {
+			if (thresholdNanos <= 0 || nanos < thresholdNanos) return;
+			final java.util.Date at = new java.util.Date();
+			try {
+				writer.execute(new Runnable() {
+					public void run() {
+						write(at, method, sql, params, nanos, rows);
+					}
+				});
+			}catch (RejectedExecutionException e){
+				dropped.incrementAndGet();
+			}
+		}
+
+		private void write(java.util.Date at, String method, String sql, Object[] params, long nanos, long rows) {
+			StringBuilder entry = new StringBuilder();
+			entry.append(at).append(String.format(" slow statement: %.3f ms, %d row(s), %s%n", nanos / 1e6, rows, method));
+			entry.append("sql: ").append(sql).append('\n');
+			entry.append("params: ").append(Arrays.toString(params)).append('\n');
+			try {
+				List<String> plan = explain(sql, params);
+				if (plan == null) {
+					entry.append("plan: not captured for this kind of statement\n");
+				}else{
+					entry.append("plan:\n");
+					for (String line : plan)
+						entry.append("  ").append(line).append('\n');
+				}
+			}catch (SQLException e){
+				entry.append("plan: EXPLAIN failed: ").append(e.getMessage()).append('\n');
+			}
+			entry.append('\n');
+			try {
+				append(entry.toString());
+				logged.incrementAndGet();
+			}catch (IOException e){
+				System.err.println("Warning - slow query log not written: " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Explains a statement in a transaction that is rolled back, with
+		 * ANALYZE only for queries, or returns null for statements it must
+		 * not explain.
+		 */
+		private List<String> explain(String sql, Object[] params) throws SQLException {
+			String lower = sql.trim().toLowerCase();
+			if (!(lower.startsWith("select") || lower.startsWith("with") || lower.startsWith("insert") ||
+					lower.startsWith("update") || lower.startsWith("delete")) ||
+					lower.contains("nextval(") || lower.contains("setval(") || lower.contains("pg_advisory"))
+				return null;
+			//a WITH may hide an INSERT ... RETURNING or an upsert
+			boolean writes = !lower.startsWith("select") && !lower.startsWith("with") ||
+				lower.matches("(?s).*\\b(insert|update|delete)\\b.*");
+			PooledConnection conn = esql._pool.borrow();
+			try {
+				conn.connection.setAutoCommit(false);
+				List<String> plan = new ArrayList<String>();
+				//not through the statement cache: one-off text, and the slow log must not feed itself
+				PreparedStatement stmt = conn.connection.prepareStatement((writes ? "EXPLAIN " : "EXPLAIN (ANALYZE, BUFFERS) ") + sql);
+				try {
+					for (int i = 0; i < params.length; ++i)
+						stmt.setObject(i + 1, params[i]);
+					ResultSet rs = stmt.executeQuery();
+					while (rs.next())
+						plan.add(rs.getString(1));
+					rs.close();
+				}finally{
+					stmt.close();
+				}
+				return plan;
+			}finally{
+				try {
+					conn.connection.rollback();
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+		}
+
+		//appends to the log, first shifting file -> file.1 -> ... -> file.<files> when it is full
+		private synchronized void append(String entry) throws IOException {
+			if (file.length() + entry.length() > maxBytes && file.length() > 0) {
+				new File(file.getPath() + "." + files).delete();
+				for (int i = files - 1; i >= 1; --i)
+					new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+				file.renameTo(new File(file.getPath() + ".1"));
+			}
+			Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+			try {
+				out.write(entry);
+			}finally{
+				out.close();
+			}
+		}
+
+		public String toString() {
+			return "slow statements logged: " + logged.get() + ", dropped: " + dropped.get() +
+				", pending: " + writer.getQueue().size();
+		}
+	}
+
+	//counts a statement in the metrics and hands it to the slow query log
+	private void recordStatement (String method, String sql, Object[] params, long start, long rows, long roundTrips, boolean failed) {
+		this._metrics.statement (method, start, rows, roundTrips, failed);
+		if (!failed)
+			this._slowQueries.check (method, sql, params, System.nanoTime () - start, rows);
+	}
+
+	/**
+	 * Method to report what the slow query log has written.
+	 */
+	public String getSlowQueryStats () {
+		return this._slowQueries.toString ();
+	}
+
+	/**
+	 * Keeps the PreparedStatements of one connection, keyed by their SQL
+	 * template, so Postgres parses and plans each template once instead of
+	 * on every call.  The least recently used statement is closed once
+	 * more than `capacity` templates are cached.
+	 */
+	public static class StatementCache {
+		//number of templates kept per connection
+		static final int DEFAULT_CAPACITY = 64;
+
+		private final Connection connection;
+		private final LinkedHashMap<String, PreparedStatement> statements;
+		private long hits = 0;
+		private long misses = 0;
+
+		StatementCache(Connection connection, final int capacity) {
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() <= capacity) return false;
+					try {
+						eldest.getValue().close();
+					}catch (SQLException e){
+						// ignored.
+					}
+					return true;
+				}
+			};
+		}
+
+		/**
+		 * Returns the cached statement for a template, preparing it on a
+		 * miss, with the given values bound to its placeholders.
+		 */
+		public synchronized PreparedStatement prepare(String sql, Object... params) throws SQLException {
+			PreparedStatement stmt = statements.get(sql);
+			if (stmt == null) {
+				++misses;
+				stmt = connection.prepareStatement(sql);
+				statements.put(sql, stmt);
+			}else{
+				++hits;
+				stmt.clearParameters();
+			}
+			for (int i = 0; i < params.length; ++i)
+				stmt.setObject(i + 1, params[i]);
+			return stmt;
+		}
+
+		public synchronized long getHits() {
+			return hits;
+		}
+
+		public synchronized long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Closes every cached statement.
+		 */
+		public synchronized void close() {
+			for (PreparedStatement stmt : statements.values()) {
+				try {
+					stmt.close();
+				}catch (SQLException e){
+					// ignored.
+				}
+			}
+			statements.clear();
+		}
+
+		public synchronized String toString() {
+			return "statements cached: " + statements.size() + ", hits: " + hits + ", misses: " + misses;
+		}
+	}
+
+	/**
+	 * Method to report how well the prepared statement caches are doing.
+	 * 
+	 * @return hit/miss counters summed over every pooled connection
+	 */
+	public String getStatementCacheStats() {
+		return this._pool.getStatementCacheStats ();
+	}
+
+	/**
+	 * Method to report the state of the connection pool.
+	 * 
+	 * @return open/idle/borrowed connections and borrow counters
+	 */
+	public String getPoolStats() {
+		return this._pool.toString ();
+	}
+
+	/**
+	 * One physical connection handed out by the pool, together with the
+	 * prepared statements cached on it.
+	 */
+	public static class PooledConnection {
+		final Connection connection;
+		final StatementCache statements;
+		final long createdAt;
+		long lastUsedAt;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY);
+			this.createdAt = System.currentTimeMillis();
+			this.lastUsedAt = this.createdAt;
+		}
+
+		void close() {
+			statements.close();
+			try {
+				connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+	}
+
+	/**
+	 * A bounded pool of connections to the shop database.  Connections that
+	 * sat idle for over `validateAfter` ms are validated when borrowed (a
+	 * connection just used is known to work, and checking it would cost
+	 * every statement a round trip), closed once they sat idle for too long or
+	 * reached their maximum lifetime, and callers wait at most
+	 * `waitTimeout` ms for one to be returned when all are in use.
+	 *
+	 * The limits can be changed with the system properties
+	 * mechanicshop.pool.maxSize, mechanicshop.pool.waitTimeout,
+	 * mechanicshop.pool.idleTimeout, mechanicshop.pool.maxLifetime and
+	 * mechanicshop.pool.validateAfter (times in ms).
+	 */
+	public static class ConnectionPool {
+		static final int DEFAULT_MAX_SIZE = 8;
+		static final long DEFAULT_WAIT_TIMEOUT = 5000;
+		static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+		static final long DEFAULT_MAX_LIFETIME = 30 * 60 * 1000;
+		//seconds the driver gets to answer a validation check
+		static final int VALIDATION_TIMEOUT = 2;
+		static final long DEFAULT_VALIDATE_AFTER = 5000;
+
+		private final String url;
+		private final String user;
+		private final String passwd;
+		private final int maxSize;
+		private final long waitTimeout;
+		private final long idleTimeout;
+		private final long maxLifetime;
+		private final long validateAfter = Long.getLong("mechanicshop.pool.validateAfter", DEFAULT_VALIDATE_AFTER);
+
+		//idle connections, most recently returned first
+		private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+		private final List<PooledConnection> open = new ArrayList<PooledConnection>();
+		//connections being opened right now, counted against maxSize
+		private int opening = 0;
+		private boolean closed = false;
+		private final Timer evictor = new Timer("connection-pool-evictor", true);
+
+		private long borrows = 0;
+		private long waits = 0;
+		private long timeouts = 0;
+		private long created = 0;
+		private long evicted = 0;
+		private long invalid = 0;
+
+		ConnectionPool(String url, String user, String passwd) {
+			this(url, user, passwd,
+				Integer.getInteger("mechanicshop.pool.maxSize", DEFAULT_MAX_SIZE),
+				Long.getLong("mechanicshop.pool.waitTimeout", DEFAULT_WAIT_TIMEOUT),
+				Long.getLong("mechanicshop.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT),
+				Long.getLong("mechanicshop.pool.maxLifetime", DEFAULT_MAX_LIFETIME));
+		}
+
+		ConnectionPool(String url, String user, String passwd, int maxSize,
+				long waitTimeout, long idleTimeout, long maxLifetime) {
+			this.url = url;
+			this.user = user;
+			this.passwd = passwd;
+			this.maxSize = maxSize;
+			this.waitTimeout = waitTimeout;
+			this.idleTimeout = idleTimeout;
+			this.maxLifetime = maxLifetime;
+
+			long period = Math.max(1000, Math.min(idleTimeout, maxLifetime) / 2);
+			evictor.schedule(new TimerTask() {
+				public void run() {
+					evictIdle();
+				}
+			}, period, period);
+		}
+
+		/**
+		 * Hands out a working connection, opening a new one while the pool
+		 * is below maxSize and otherwise waiting for one to be released.
+		 *
+		 * @throws java.sql.SQLException when no connection became available
+		 * within the wait timeout or a new one could not be opened
+		 */
+		public PooledConnection borrow() throws SQLException {
+			long deadline = System.currentTimeMillis() + waitTimeout;
+			while (true) {
+				PooledConnection conn = null;
+				synchronized (this) {
+					if (closed) throw new SQLException("Connection pool is closed");
+					++borrows;
+					boolean waited = false;
+					while (idle.isEmpty() && open.size() + opening >= maxSize) {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							++timeouts;
+							throw new SQLException("Timed out after " + waitTimeout +
+								" ms waiting for a database connection");
+						}
+						if (!waited) {
+							++waits;
+							waited = true;
+						}
+						try {
+							wait(remaining);
+						}catch (InterruptedException e){
+							Thread.currentThread().interrupt();
+							throw new SQLException("Interrupted while waiting for a database connection");
+						}
+						if (closed) throw new SQLException("Connection pool is closed");
+					}
+					if (!idle.isEmpty()) {
+						conn = idle.removeFirst();
+					}else{
+						++opening;
+					}
+				}
+
+				if (conn == null) {
+					return open();
+				}
+				//validation talks to the server, so it runs outside the lock
+				long now = System.currentTimeMillis();
+				if (!expired(conn, now) && (now - conn.lastUsedAt < validateAfter || isValid(conn))) {
+					return conn;
+				}
+				discard(conn, true);
+			}
+		}
+
+		/**
+		 * Gives a borrowed connection back to the pool.  Connections that
+		 * were closed underneath us or outlived maxLifetime are dropped.
+		 */
+		public void release(PooledConnection conn) {
+			if (conn == null) return;
+			boolean broken;
+			try {
+				broken = conn.connection.isClosed() || !conn.connection.getAutoCommit();
+			}catch (SQLException e){
+				broken = true;
+			}
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				if (!closed && !broken && now - conn.createdAt < maxLifetime) {
+					conn.lastUsedAt = now;
+					idle.addFirst(conn);
+					notify();
+					return;
+				}
+			}
+			discard(conn, false);
+		}
+
+		/**
+		 * Closes connections that sat idle longer than idleTimeout or are
+		 * past maxLifetime.
+		 */
+		void evictIdle() {
+			List<PooledConnection> stale = new ArrayList<PooledConnection>();
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				Iterator<PooledConnection> it = idle.iterator();
+				while (it.hasNext()) {
+					PooledConnection conn = it.next();
+					if (expired(conn, now)) {
+						it.remove();
+						stale.add(conn);
+					}
+				}
+			}
+			for (PooledConnection conn : stale) discard(conn, false);
+		}
+
+		/**
+		 * Closes every idle connection and refuses further borrows.
+		 */
+		public void close() {
+			List<PooledConnection> toClose;
+			synchronized (this) {
+				closed = true;
+				evictor.cancel();
+				toClose = new ArrayList<PooledConnection>(idle);
+				idle.clear();
+				notifyAll();
+			}
+			for (PooledConnection conn : toClose) discard(conn, false);
+		}
+
+		private PooledConnection open() throws SQLException {
+			try {
+				PooledConnection conn = new PooledConnection(DriverManager.getConnection(url, user, passwd));
+				synchronized (this) {
+					--opening;
+					++created;
+					open.add(conn);
+				}
+				return conn;
+			}catch (SQLException e){
+				synchronized (this) {
+					--opening;
+					notify();
+				}
+				throw e;
+			}
+		}
+
+		private boolean expired(PooledConnection conn, long now) {
+			return now - conn.lastUsedAt >= idleTimeout || now - conn.createdAt >= maxLifetime;
+		}
+
+		private boolean isValid(PooledConnection conn) {
+			try {
+				return conn.connection.isValid(VALIDATION_TIMEOUT);
+			}catch (SQLException e){
+				return false;
+			}
+		}
+
+		private void discard(PooledConnection conn, boolean failedValidation) {
+			synchronized (this) {
+				if (open.remove(conn)) {
+					if (failedValidation) ++invalid; else ++evicted;
+				}
+				notify();
+			}
+			conn.close();
+		}
+
+		synchronized String getStatementCacheStats() {
+			long hits = 0;
+			long misses = 0;
+			for (PooledConnection conn : open) {
+				hits += conn.statements.getHits();
+				misses += conn.statements.getMisses();
+			}
+			return "statement cache hits: " + hits + ", misses: " + misses;
+		}
+
+		public synchronized String toString() {
+			return "connections open: " + open.size() + "/" + maxSize +
+				", idle: " + idle.size() +
+				", borrowed: " + (open.size() - idle.size()) +
+				", borrows: " + borrows +
+				", waits: " + waits +
+				", timeouts: " + timeouts +
+				", created: " + created +
+				", evicted: " + evicted +
+				", failed validation: " + invalid;
+		}
+	}
+
+	/**
+	 * Method to hand out the next primary key for one of the shop tables.
+	 * Keys come from blocks reserved by the key allocator, so most calls
+	 * never touch the DBMS.
+	 * 
+	 * @param key the table/column the key is for
+	 * @return a key that no other client has been given
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public int allocateKey(KeyAllocator.Key key) throws SQLException {
+		return this._keys.next(key);
+	}
+
+	/**
+	 * Hands out primary keys for the tables that used to rely on
+	 * MAX(id) + 1.  Every key has its own sequence stepping by BLOCK_SIZE,
+	 * so one nextval reserves a whole block of ids for this client and the
+	 * ids are then given out from memory.  Since blocks are never shared,
+	 * several clients inserting at once can not hand out the same key.
+	 */
+	public static class KeyAllocator {
+		//number of ids reserved with every round trip
+		static final int BLOCK_SIZE = 100;
+
+		public enum Key {
+			CUSTOMER ("Customer", "id", "customer_id_block_seq"),
+			MECHANIC ("Mechanic", "id", "mechanic_id_block_seq"),
+			OWNS ("Owns", "ownership_id", "owns_ownership_id_block_seq"),
+			SERVICE_REQUEST ("Service_Request", "rid", "service_request_rid_block_seq"),
+			CLOSED_REQUEST ("Closed_Request", "wid", "closed_request_wid_block_seq");
+
+			final String table;
+			final String column;
+			final String sequence;
+
+			Key(String table, String column, String sequence) {
+				this.table = table;
+				this.column = column;
+				this.sequence = sequence;
+			}
+		}
+
+		private final MechanicShop esql;
+		//next id to hand out and the first id past the current block
+		private final Map<Key, int[]> blocks = new HashMap<Key, int[]>();
+
+		KeyAllocator(MechanicShop esql) {
+			this.esql = esql;
+		}
+
+		/**
+		 * Returns the next free key, reserving a new block when the
+		 * current one is used up.
+		 */
+		public synchronized int next(Key key) throws SQLException {
+			int[] block = blocks.get(key);
+			if (block == null) {
+				block = new int[] {0, 0};
+				blocks.put(key, block);
+			}
+			if (block[0] >= block[1]) {
+				block[0] = esql.getNextSeqVal(key.sequence);
+				block[1] = block[0] + BLOCK_SIZE;
+			}
+			return block[0]++;
+		}
+
+		/**
+		 * Drops the block held for a key so the next call reserves a fresh
+		 * one, e.g. after rows were loaded with their own ids.
+		 */
+		public synchronized void reset(Key key) throws SQLException {
+			blocks.put(key, new int[] {0, 0});
+			//under the migration lock, so two resets cannot move the sequence back
+			Schema.runLocked(esql, Arrays.asList(String.format(
+				"SELECT setval('%s', GREATEST(nextval('%s'), " +
+				"(SELECT COALESCE(MAX(%s), 0) + 1 FROM %s)), false)",
+				key.sequence, key.sequence, key.column, key.table)));
+		}
+
+		/**
+		 * Reserves count consecutive ids for a key, e.g. for generated
+		 * rows, and returns the first.  Blocks other clients already hold
+		 * are below the range and their next block starts past it.
+		 */
+		public static int reserve(MechanicShop esql, Key key, int count) throws SQLException {
+			PooledConnection conn = esql._pool.borrow();
+			try {
+				conn.connection.setAutoCommit(false);
+				//ALTER SEQUENCE holds off nextval on the sequence until commit, so no block is handed out in between
+				conn.statements.prepare(String.format("ALTER SEQUENCE %s INCREMENT BY %d", key.sequence, BLOCK_SIZE)).execute();
+				ResultSet rs = conn.statements.prepare(String.format(
+					"SELECT GREATEST(nextval('%s'), (SELECT COALESCE(MAX(%s), 0) + 1 FROM %s))",
+					key.sequence, key.column, key.table)).executeQuery();
+				rs.next();
+				int first = rs.getInt(1);
+				rs.close();
+				conn.statements.prepare(String.format("SELECT setval('%s', ?, false)", key.sequence), (long) first + count).execute();
+				conn.connection.commit();
+				return first;
+			}catch (SQLException e){
+				conn.connection.rollback();
+				throw e;
+			}finally{
+				try {
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+		}
+
+		/**
+		 * Statements that create the sequence behind every key.  A sequence
+		 * that has never been used is started right after the highest
+		 * existing key, so rows inserted before the allocator existed are
+		 * not reused.  They run with the schema migrations, under its
+		 * advisory lock, so that clients starting together seed each
+		 * sequence once.
+		 */
+		static List<String> setup() {
+			List<String> statements = new ArrayList<String>();
+			for (Key key : Key.values()) {
+				statements.add(String.format(
+					"CREATE SEQUENCE IF NOT EXISTS %s INCREMENT BY %d MINVALUE 1",
+					key.sequence, BLOCK_SIZE));
+				statements.add(String.format(
+					"SELECT setval('%s', (SELECT COALESCE(MAX(%s), 0) + 1 FROM %s), false) " +
+					"FROM %s WHERE NOT is_called",
+					key.sequence, key.column, key.table, key.sequence));
+			}
+			return statements;
+		}
+	}
+
+	/**
+	 * A read-through cache of query results, bounded in size (least
+	 * recently used entries go first) and in age (entries older than the
+	 * ttl are reloaded).  Results with no rows are cached too, so repeated
+	 * misses do not reach the DBMS either.  Writes made through this
+	 * client invalidate the matching keys; writes made by other clients
+	 * show up once the ttl expires.
+	 */
+	public static class LookupCache<K> {
+		static final int DEFAULT_SIZE = 1024;
+		static final long DEFAULT_TTL = 60 * 1000L;
+
+		/**
+		 * Runs the query behind a key.
+		 */
+		interface Loader<K> {
+			ColumnarResult load(K key) throws SQLException;
+		}
+
+		private static class Entry {
+			final ColumnarResult result;
+			final long loadedAt;
+
+			Entry(ColumnarResult result, long loadedAt) {
+				this.result = result;
+				this.loadedAt = loadedAt;
+			}
+		}
+
+		private final String name;
+		private final int maxSize;
+		private final long ttl;
+		private final Loader<K> loader;
+		private final LinkedHashMap<K, Entry> entries;
+		//keys being loaded: {loads in flight, times invalidated since the first began}
+		private final Map<K, int[]> loading = new HashMap<K, int[]>();
+		private long hits = 0;
+		private long misses = 0;
+
+		LookupCache(String name, final int maxSize, long ttl, Loader<K> loader) {
+			this.name = name;
+			this.maxSize = maxSize;
+			this.ttl = ttl;
+			this.loader = loader;
+			this.entries = new LinkedHashMap<K, Entry>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<K, Entry> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+
+		/**
+		 * Returns the cached result for key, loading it on a miss.  The
+		 * query runs outside the lock, so a slow load does not hold up
+		 * lookups of other keys.  A result is not cached when the key was
+		 * invalidated while it loaded, since it may predate the write.
+		 */
+		public ColumnarResult get(K key) throws SQLException {
+			long now = System.currentTimeMillis();
+			int[] load;
+			int generation;
+			synchronized (this) {
+				Entry entry = entries.get(key);
+				if (entry != null && now - entry.loadedAt < ttl) {
+					++hits;
+					return entry.result;
+				}
+				++misses;
+				load = loading.get(key);
+				if (load == null) {
+					load = new int[] {0, 0};
+					loading.put(key, load);
+				}
+				++load[0];
+				generation = load[1];
+			}
+			try {
+				ColumnarResult result = loader.load(key);
+				synchronized (this) {
+					if (load[1] == generation)
+						entries.put(key, new Entry(result, now));
+				}
+				return result;
+			}finally{
+				synchronized (this) {
+					if (--load[0] == 0) loading.remove(key);
+				}
+			}
+		}
+
+		public synchronized void invalidate(K key) {
+			entries.remove(key);
+			int[] load = loading.get(key);
+			if (load != null) ++load[1];
+		}
+
+		public synchronized void clear() {
+			entries.clear();
+			for (int[] load : loading.values())
+				++load[1];
+		}
+
+		public synchronized String toString() {
+			return name + ": " + entries.size() + "/" + maxSize + " cached, hits: " + hits + ", misses: " + misses;
+		}
+	}
+
+	/**
+	 * Method to look up a customer by id, through the lookup cache.
+	 * 
+	 * @return the Customer row, or no rows when there is no such customer
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult customerById (int id) throws SQLException {
+		return this._customersById.get (id);
+	}
+
+	/**
+	 * Method to look up customers by last name, through the lookup cache.
+	 * 
+	 * @return the matching Customer rows
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult customersByLname (String lname) throws SQLException {
+		return this._customersByLname.get (lname);
+	}
+
+	/**
+	 * Method to look up a car by VIN, through the lookup cache.
+	 * 
+	 * @return the Car row, or no rows when there is no such car
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult carByVin (String vin) throws SQLException {
+		return this._carsByVin.get (vin);
+	}
+
+	/**
+	 * Method to check whether a car is on file.  A car the VIN index knows
+	 * is answered without a round trip.  Any other VIN is looked up through
+	 * the lookup cache, since another process may have added it, and is
+	 * added to the index when found.
+	 * 
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean carExists (String vin) throws SQLException {
+		int owner = this._vins.owner (vin);
+		if (owner != VinIndex.UNKNOWN && owner != VinIndex.ABSENT)
+			return true;
+		if (carByVin (vin).getRowCount () == 0)
+			return false;
+		this._vins.add (vin);
+		return true;
+	}
+
+	/**
+	 * Method to check whether a customer owns a car.  A car whose latest
+	 * owner in the VIN index is the customer is answered without a round
+	 * trip; anything else (earlier owners, or cars and sales recorded by
+	 * other processes) by the owned cars.
+	 * 
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean ownsCar (int customerId, String vin) throws SQLException {
+		if (this._vins.owner (vin) == customerId)
+			return true;
+		return containsValue (ownedCars (customerId), "vin", vin);
+	}
+
+	/**
+	 * Method to list the cars a customer owns, through the lookup cache.
+	 * 
+	 * @return model and vin of each car
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult ownedCars (int customerId) throws SQLException {
+		return this._ownedCars.get (customerId);
+	}
+
+	/**
+	 * Method to look up a mechanic by id, through the lookup cache.
+	 * 
+	 * @return the Mechanic row, or no rows when there is no such mechanic
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult mechanicById (int id) throws SQLException {
+		return this._mechanicsById.get (id);
+	}
+
+	/**
+	 * Method to report how well the lookup caches are doing.
+	 * 
+	 * @return size and hit/miss counters of each cache
+	 */
+	public String getLookupCacheStats () {
+		return this._customersById + "; " + this._customersByLname + "; " + this._carsByVin + "; " +
+			this._ownedCars + "; " + this._mechanicsById;
+	}
+
+	/**
+	 * Method to find customers by a last name that may be misspelled,
+	 * partial or in any case, best matches first: exact names, then names
+	 * starting with it, then names that sound like it.  While the name
+	 * index is being built, only exact and prefix matches on the last name
+	 * are found, with a query.
+	 * 
+	 * @param fname first name to rank matches by, or null
+	 * @param limit most matches returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<NameIndex.Match> searchCustomers (String lname, String fname, int limit) throws SQLException {
+		List<NameIndex.Match> matches = this._names.search (lname, fname, limit);
+		if (matches != null)
+			return matches;
+		String key = lname.trim ().toLowerCase ();
+		matches = new ArrayList<NameIndex.Match> ();
+		if (key.isEmpty ())
+			return matches;
+		ColumnarResult rows = executeReadQuery ("SELECT id, fname, lname FROM Customer " +
+			"WHERE lower(lname) LIKE ? ORDER BY lower(lname), fname, id LIMIT ?",
+			key.replace ("\\", "\\\\").replace ("%", "\\%").replace ("_", "\\_") + "%", limit);
+		for (int row = 0; row < rows.getRowCount (); ++row) {
+			String found = rows.getString (row, 2).trim ();
+			int score = found.equalsIgnoreCase (lname.trim ()) ? NameIndex.EXACT : NameIndex.PREFIX;
+			matches.add (new NameIndex.Match (rows.getInt (row, 0), rows.getString (row, 1).trim (), found, 4 * score, row));
+		}
+		//exact names first; the query sorted by name
+		Collections.sort (matches, NameIndex.BY_SCORE);
+		return matches;
+	}
+
+	/**
+	 * Method to report the size of the name index.
+	 */
+	public String getNameIndexStats () {
+		return this._names.toString ();
+	}
+
+	/**
+	 * Method to report the size of the VIN index.
+	 */
+	public String getVinIndexStats () {
+		return this._vins.toString ();
+	}
+
+	//a cache of `query`, which takes the key as its only parameter
+	private <K> LookupCache<K> lookupCache (String name, final String query) {
+		return new LookupCache<K> (name,
+			Integer.getInteger ("mechanicshop.cache.size", LookupCache.DEFAULT_SIZE),
+			Long.getLong ("mechanicshop.cache.ttl", LookupCache.DEFAULT_TTL),
+			new LookupCache.Loader<K> () {
+				public ColumnarResult load (K key) throws SQLException {
+					//from the primary: a replica's stale answer would be cached for the whole ttl
+					return executeQueryAndReturnColumns (query, key);
+				}
+			});
+	}
+
+	/**
+	 * Method to print a result the way executeQueryAndPrintResult prints
+	 * a query.
+	 * 
+	 * @return the number of rows printed
+	 */
+	public static int printResult (ColumnarResult result) {
+		if (result.getRowCount () == 0) return 0;
+		PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), OUTPUT_BUFFER_SIZE));
+		for (int i = 0; i < result.getColumnCount (); ++i)
+			out.print (result.getColumnName (i) + "\t");
+		out.println ();
+		for (int row = 0; row < result.getRowCount (); ++row) {
+			for (int i = 0; i < result.getColumnCount (); ++i)
+				out.print (result.getString (row, i) + "\t");
+			out.println ();
+		}
+		out.flush ();
+		return result.getRowCount ();
+	}
+
+	/**
+	 * Method to print name search matches to standard out, best first.
+	 * 
+	 * @return the number of matches printed
+	 */
+	public static int printMatches (List<NameIndex.Match> matches) {
+		if (matches.isEmpty ()) return 0;
+		System.out.println ("id\tfname\tlname\t");
+		for (NameIndex.Match match : matches)
+			System.out.println (match.id + "\t" + match.fname + "\t" + match.lname + "\t");
+		return matches.size ();
+	}
+
+	/**
+	 * Method to tell whether a customer is among name search matches.
+	 */
+	static boolean containsId (List<NameIndex.Match> matches, int id) {
+		for (NameIndex.Match match : matches)
+			if (match.id == id) return true;
+		return false;
+	}
+
+	/**
+	 * Method to tell whether column `column` of a result holds `value` in
+	 * some row.  CHAR columns come back blank padded, so both sides are
+	 * trimmed.
+	 */
+	static boolean containsValue (ColumnarResult result, String column, String value) {
+		int col = result.findColumn (column);
+		for (int row = 0; row < result.getRowCount (); ++row) {
+			String cell = result.getString (row, col);
+			if (cell != null && cell.trim ().equals (value.trim ())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Method to add a customer.
+	 * 
+	 * @return the id given to the new customer
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addCustomer (String fname, String lname, String phone, String address) throws SQLException {
+		int id = allocateKey (KeyAllocator.Key.CUSTOMER);
+		executeUpdate ("INSERT INTO Customer(id, fname, lname, phone, address) " +
+			"VALUES (?, ?, ?, ?, ?)", id, fname, lname, phone, address);
+		this._customersById.invalidate (id);
+		this._customersByLname.invalidate (lname);
+		this._names.add (id, fname, lname);
+		return id;
+	}
+
+	/**
+	 * Method to add a mechanic.
+	 * 
+	 * @return the id given to the new mechanic
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addMechanic (String fname, String lname, int experience) throws SQLException {
+		int id = allocateKey (KeyAllocator.Key.MECHANIC);
+		executeUpdate ("INSERT INTO Mechanic(id, fname, lname, experience) " +
+			"VALUES (?, ?, ?, ?)", id, fname, lname, experience);
+		this._mechanicsById.invalidate (id);
+		return id;
+	}
+
+	/**
+	 * Method to add a car.  Use addOwnership to record who owns it.
+	 * 
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public void addCar (String vin, String make, String model, int year) throws SQLException {
+		executeUpdate ("INSERT INTO Car(vin, make, model, year) " +
+			"VALUES (?, ?, ?, ?)", vin, make, model, year);
+		this._carsByVin.invalidate (vin);
+		this._vins.add (vin);
+	}
+
+	/**
+	 * Method to record that a customer owns a car.
+	 * 
+	 * @return the ownership_id of the new Owns row
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int addOwnership (int customerId, String vin) throws SQLException {
+		int ownershipId = allocateKey (KeyAllocator.Key.OWNS);
+		//counts the car towards the owner's total in the same statement
+		executeUpdate ("WITH owns AS (INSERT INTO Owns(ownership_id, customer_id, car_vin) " +
+			"VALUES (?, ?, ?) RETURNING customer_id) " +
+			"INSERT INTO Customer_Car_Count(customer_id, cars) SELECT customer_id, 1 FROM owns " +
+			"ON CONFLICT (customer_id) DO UPDATE SET cars = Customer_Car_Count.cars + 1",
+			ownershipId, customerId, vin);
+		this._ownedCars.invalidate (customerId);
+		this._vins.setOwner (vin, customerId);
+		return ownershipId;
+	}
+
+	/**
+	 * Method to open a service request.
+	 * 
+	 * @param date the request date (M/D/YYYY)
+	 * @return the rid given to the new request
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	public int insertServiceRequest (int customerId, String vin, String date, int odometer, String complain) throws SQLException {
+		int rid = allocateKey (KeyAllocator.Key.SERVICE_REQUEST);
+		this._topK.inserting (rid);
+		try {
+			executeUpdate ("INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) " +
+				"VALUES (?, ?, ?, CAST(? AS DATE), ?, ?)", rid, customerId, vin, date, odometer, complain);
+		}catch (SQLException e){
+			this._topK.abandoned (rid);
+			throw e;
+		}
+		this._topK.recordService (rid, vin);
+		return rid;
+	}
+
+	/**
+	 * Method to open a service request through the intake pipeline, which
+	 * inserts requests arriving close together in one batch and one
+	 * commit.  Blocks while the pipeline's queue is full.  Meant for
+	 * concurrent callers such as the server; a single clerk at the menu
+	 * inserts directly, as a batch of one only adds the linger wait.
+	 * 
+	 * @param date the request date (M/D/YYYY)
+	 * @return completes with the rid given to the new request, or with
+	 *         the reason it could not be inserted
+	 */
+	public CompletableFuture<Integer> submitServiceRequest (int customerId, String vin, String date, int odometer, String complain) {
+		this._replicas.wrote ();
+		return intake ().submit (customerId, vin, date, odometer, complain);
+	}
+
+	//starts the intake pipeline on first use
+	synchronized IntakePipeline intake () {
+		if (this._intake == null) {
+			this._intake = new IntakePipeline (this,
+				Integer.getInteger ("mechanicshop.intake.batchSize", IntakePipeline.DEFAULT_BATCH_SIZE),
+				Integer.getInteger ("mechanicshop.intake.lingerMillis", IntakePipeline.DEFAULT_LINGER_MILLIS),
+				Integer.getInteger ("mechanicshop.intake.queueSize", IntakePipeline.DEFAULT_QUEUE_SIZE));
+		}
+		return this._intake;
+	}
+
+	/**
+	 * Groups service requests into batches.  One daemon thread takes the
+	 * first queued request, waits up to lingerMillis for up to batchSize
+	 * more, and inserts them all with one JDBC batch in one transaction,
+	 * so the commit is paid once per batch instead of once per request.
+	 * When a batch fails (say one row names a car the customer does not
+	 * exist for) it is rolled back and its rows are retried one by one, so
+	 * only the bad rows fail.
+	 */
+	static class IntakePipeline {
+		static final int DEFAULT_BATCH_SIZE = 100;
+		static final int DEFAULT_LINGER_MILLIS = 5;
+		static final int DEFAULT_QUEUE_SIZE = 10000;
+		static final String INSERT =
+			"INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) " +
+			"VALUES (?, ?, ?, CAST(? AS DATE), ?, ?)";
+
+		private static class Request {
+			final Object[] row;
+			final CompletableFuture<Integer> rid = new CompletableFuture<Integer>();
+
+			Request(Object[] row) {
+				this.row = row;
+			}
+		}
+
+		private final MechanicShop esql;
+		private final int batchSize;
+		private final long lingerNanos;
+		private final BlockingQueue<Request> queue;
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong requests = new AtomicLong();
+
+		IntakePipeline(MechanicShop esql, int batchSize, int lingerMillis, int queueSize) {
+			this.esql = esql;
+			this.batchSize = batchSize;
+			this.lingerNanos = lingerMillis * 1000000L;
+			this.queue = new LinkedBlockingQueue<Request>(queueSize);
+			Thread writer = new Thread("intake") {
+				public void run() {
+					drain();
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		CompletableFuture<Integer> submit(int customerId, String vin, String date, int odometer, String complain) {
+			Request request = new Request(new Object[] {null, customerId, vin, date, odometer, complain});
+			try {
+				queue.put(request);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				request.rid.completeExceptionally(e);
+			}
+			return request.rid;
+		}
+
+		private void drain() {
+			List<Request> batch = new ArrayList<Request>(batchSize);
+			while (true) {
+				try {
+					batch.add(queue.take());
+					long deadline = System.nanoTime() + lingerNanos;
+					while (batch.size() < batchSize) {
+						Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (next == null) break;
+						batch.add(next);
+					}
+				}catch (InterruptedException e){
+					return;
+				}
+				write(batch);
+				batch.clear();
+			}
+		}
+
+		private void write(List<Request> batch) {
+			PooledConnection conn;
+			try {
+				for (Request request : batch)
+					if (request.row[0] == null) {
+						request.row[0] = esql.allocateKey(KeyAllocator.Key.SERVICE_REQUEST);
+						esql._topK.inserting((Integer) request.row[0]);
+					}
+				conn = esql._pool.borrow();
+			}catch (SQLException e){
+				for (Request request : batch) {
+					if (request.row[0] != null) esql._topK.abandoned((Integer) request.row[0]);
+					request.rid.completeExceptionally(e);
+				}
+				return;
+			}
+			boolean written = false;
+			long start = System.nanoTime();
+			try {
+				conn.connection.setAutoCommit(false);
+				PreparedStatement stmt = conn.statements.prepare(INSERT);
+				for (Request request : batch) {
+					for (int i = 0; i < request.row.length; ++i)
+						stmt.setObject(i + 1, request.row[i]);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				conn.connection.commit();
+				written = true;
+			}catch (SQLException e){
+				try {
+					conn.connection.rollback();
+				}catch (SQLException ignored){
+				}
+			}finally{
+				//one round trip for the batch, one for the commit
+				esql._metrics.statement("intake batch", start, written ? batch.size() : 0, 2, !written);
+				try {
+					conn.connection.setAutoCommit(true);
+				}catch (SQLException ignored){
+				}
+				esql._pool.release(conn);
+			}
+			batches.incrementAndGet();
+			requests.addAndGet(batch.size());
+			for (Request request : batch) {
+				if (!written) {
+					//find the rows that broke the batch
+					try {
+						esql.executeUpdate(INSERT, request.row);
+					}catch (SQLException e){
+						esql._topK.abandoned((Integer) request.row[0]);
+						request.rid.completeExceptionally(e);
+						continue;
+					}
+				}
+				try {
+					esql._topK.recordService((Integer) request.row[0], (String) request.row[2]);
+				}catch (SQLException e){
+					//the row is in; let the index recount rather than drift
+					esql._topK.invalidate();
+				}
+				request.rid.complete((Integer) request.row[0]);
+			}
+		}
+
+		public String toString() {
+			long n = batches.get();
+			return "intake batches: " + n + ", requests: " + requests.get() +
+				", queued: " + queue.size() + (n == 0 ? "" : ", avg batch: " + requests.get() / n);
+		}
+	}
+
+	//list reports behind menu options 6-8 and 10, paged on the trailing key
+	//one row per distinct (name, bill, date, comment), so it pages on all of them, date first along its index
+	static final KeysetReport BILL_LESS_THAN = new KeysetReport ("bill-less-than", new String[] {"bill"},
+		"SELECT DISTINCT fname, lname, c.bill, c.date, c.comment, " +
+		"COALESCE(c.comment, '') AS comment_key, c.comment IS NULL AS no_comment " +
+		"FROM   Customer, Service_Request s, Closed_Request c " +
+		"WHERE  id = s.customer_id AND s.rid = c.rid AND c.bill < ?", 5, false,
+		new KeysetReport.Key ("c.date", "DATE", 3), new KeysetReport.Key ("fname", "BPCHAR", 0),
+		new KeysetReport.Key ("lname", "BPCHAR", 1), new KeysetReport.Key ("c.bill", "INTEGER", 2),
+		new KeysetReport.Key ("COALESCE(c.comment, '')", "TEXT", 5), new KeysetReport.Key ("c.comment IS NULL", "BOOLEAN", 6));
+	//reads the Customer_Car_Count rollup, so only owners above the threshold are visited
+	static final KeysetReport MORE_THAN_N_CARS = new KeysetReport ("more-than-n-cars", new String[] {"cars"},
+		"SELECT C.fname, C.lname, N.cars AS numCars, N.customer_id FROM Customer_Car_Count N, Customer C " +
+		"WHERE N.cars > ? AND C.id = N.customer_id", 3, true,
+		new KeysetReport.Key ("N.cars", "INTEGER", 2), new KeysetReport.Key ("N.customer_id", "INTEGER", 3));
+	static final KeysetReport CARS_BEFORE_YEAR_UNDER_MILES = new KeysetReport ("cars-before-year-under-miles", new String[] {"odometer", "year"},
+		"SELECT Car.make, Car.model, Car.year, Service_Request.odometer, Service_Request.rid FROM Car,Service_Request " +
+		"WHERE Service_Request.car_vin = Car.vin AND Service_Request.odometer < ? AND Car.year < ?", 4, false,
+		new KeysetReport.Key ("Service_Request.rid", "INTEGER", 4));
+	//reads the Customer_Billing rollup along its (total, customer_id) index
+	static final KeysetReport CUSTOMERS_BY_TOTAL_BILL = new KeysetReport ("customers-by-total-bill", new String[0],
+		"SELECT C.fname, C.lname, B.total, B.customer_id FROM Customer_Billing B, Customer C " +
+		"WHERE C.id = B.customer_id", 3, true,
+		new KeysetReport.Key ("B.total", "BIGINT", 2), new KeysetReport.Key ("B.customer_id", "INTEGER", 3));
+	static final KeysetReport[] REPORTS = {
+		BILL_LESS_THAN, MORE_THAN_N_CARS, CARS_BEFORE_YEAR_UNDER_MILES, CUSTOMERS_BY_TOTAL_BILL
+	};
+	static final String K_CARS_WITH_MOST_SERVICES_QUERY =
+		"SELECT make, model, R.sreq FROM Car AS C, ( SELECT car_vin, COUNT(rid) AS sreq FROM Service_Request GROUP BY car_vin ) AS R WHERE R.car_vin = C.vin ORDER BY R.sreq DESC LIMIT ?";
+
+	/**
+	 * Method to list the k cars with the most service requests.  Answers
+	 * come from the in-process top-K index, which is loaded on first use;
+	 * k above TopKServiceIndex.getMaxK() goes to the DBMS instead.
+	 * 
+	 * @param k number of cars to return
+	 * @return make, model and request count of each car, most serviced first
+	 * @throws java.sql.SQLException when the index could not be loaded
+	 */
+	public List<TopKServiceIndex.Car> topKCars (int k) throws SQLException {
+		if (k <= this._topK.getMaxK ()) return this._topK.top (k);
+		List<TopKServiceIndex.Car> cars = new ArrayList<TopKServiceIndex.Car> ();
+		for (List<String> row : executeQueryAndReturnResult (K_CARS_WITH_MOST_SERVICES_QUERY, k))
+			cars.add (new TopKServiceIndex.Car (null, row.get (0), row.get (1), Integer.parseInt (row.get (2))));
+		return cars;
+	}
+
+	/**
+	 * Keeps the service request count of every serviced car in memory,
+	 * ordered by count, so "the k cars with the most services" is a walk
+	 * over the first k entries instead of a GROUP BY over Service_Request
+	 * and a sort of every car.  The counts are loaded from the DBMS on
+	 * first use and bumped by insertServiceRequest afterwards.  A request
+	 * that commits just before the load but is reported just after it is
+	 * already in the loaded counts; the load tells those apart by checking,
+	 * in its own snapshot, which of the rids still in flight it saw.
+	 *
+	 * Requests inserted by other processes are not seen until the index
+	 * is invalidated; verify() compares it against the SQL answer.
+	 */
+	public static class TopKServiceIndex {
+		static final int DEFAULT_MAX_K = 1000;
+
+		/**
+		 * One car and its number of service requests.
+		 */
+		public static class Car {
+			public final String vin;
+			public final String make;
+			public final String model;
+			public final int services;
+
+			Car(String vin, String make, String model, int services) {
+				this.vin = vin;
+				this.make = make;
+				this.model = model;
+				this.services = services;
+			}
+		}
+
+		//most services first, ties by VIN
+		private static final Comparator<Car> BY_SERVICES = new Comparator<Car>() {
+			public int compare(Car a, Car b) {
+				if (a.services != b.services) return a.services > b.services ? -1 : 1;
+				return a.vin.compareTo(b.vin);
+			}
+		};
+
+		private final MechanicShop esql;
+		private final int maxK;
+		private final Map<String, Car> byVin = new HashMap<String, Car>();
+		private final TreeSet<Car> ranked = new TreeSet<Car>(BY_SERVICES);
+		private boolean loaded = false;
+		//rids being inserted by this client, not yet passed to recordService
+		private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+		//rids in flight during the last load that it already counted
+		private final Set<Integer> counted = new HashSet<Integer>();
+
+		TopKServiceIndex(MechanicShop esql, int maxK) {
+			this.esql = esql;
+			this.maxK = maxK;
+		}
+
+		public int getMaxK() {
+			return maxK;
+		}
+
+		/**
+		 * Returns the k most serviced cars, loading the index if needed.
+		 */
+		public synchronized List<Car> top(int k) throws SQLException {
+			if (k > maxK) throw new IllegalArgumentException("k can be at most " + maxK);
+			load();
+			List<Car> top = new ArrayList<Car>(Math.min(k, ranked.size()));
+			for (Car car : ranked) {
+				if (top.size() == k) break;
+				top.add(car);
+			}
+			return top;
+		}
+
+		/**
+		 * Notes a service request about to be inserted, before its
+		 * statement runs.
+		 */
+		void inserting(int rid) {
+			inFlight.add(rid);
+		}
+
+		/**
+		 * Notes that the insert of a request noted by inserting() failed.
+		 */
+		void abandoned(int rid) {
+			inFlight.remove(rid);
+		}
+
+		/**
+		 * Counts a new service request for a car, once it is committed.
+		 * Does nothing until the index has been loaded, since loading reads
+		 * the current counts, nor for a request the load already counted.
+		 */
+		public synchronized void recordService(int rid, String vin) throws SQLException {
+			inFlight.remove(rid);
+			if (counted.remove(rid) || !loaded) return;
+			Car car = byVin.get(vin);
+			if (car == null) {
+				List<List<String>> rows = esql.executeQueryAndReturnResult(
+					"SELECT make, model FROM Car WHERE vin = ?", vin);
+				if (rows.isEmpty()) return;
+				car = new Car(vin, rows.get(0).get(0), rows.get(0).get(1), 0);
+			}else{
+				ranked.remove(car);
+			}
+			car = new Car(vin, car.make, car.model, car.services + 1);
+			byVin.put(vin, car);
+			ranked.add(car);
+		}
+
+		/**
+		 * Drops the counts; they are read again on the next top() call.
+		 */
+		public synchronized void invalidate() {
+			loaded = false;
+			byVin.clear();
+			ranked.clear();
+			counted.clear();
+		}
+
+		/**
+		 * Compares the index's top k with the SQL report.
+		 *
+		 * @return null when the counts agree, otherwise a description of
+		 * the first difference
+		 */
+		public String verify(int k) throws SQLException {
+			List<Car> fromIndex = top(k);
+			List<List<String>> fromSql = esql.executeQueryAndReturnResult(K_CARS_WITH_MOST_SERVICES_QUERY, k);
+			if (fromIndex.size() != fromSql.size())
+				return "index has " + fromIndex.size() + " cars but the query returned " + fromSql.size();
+			//ties may be listed in any order, so only the counts are compared
+			for (int i = 0; i < fromIndex.size(); ++i) {
+				int expected = Integer.parseInt(fromSql.get(i).get(2));
+				if (fromIndex.get(i).services != expected)
+					return "car #" + (i + 1) + " has " + fromIndex.get(i).services +
+						" services in the index but " + expected + " in the database";
+			}
+			return null;
+		}
+
+		private void load() throws SQLException {
+			if (loaded) return;
+			ColumnarResult counts;
+			PooledConnection conn = esql._pool.borrow();
+			int isolation = Connection.TRANSACTION_READ_COMMITTED;
+			try {
+				isolation = conn.connection.getTransactionIsolation();
+				//both queries see the same snapshot
+				conn.connection.setAutoCommit(false);
+				conn.connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				counts = esql.queryOn(conn,
+					"SELECT C.vin, C.make, C.model, COUNT(R.rid) FROM Car C, Service_Request R " +
+					"WHERE R.car_vin = C.vin GROUP BY C.vin, C.make, C.model");
+				//a request the snapshot holds was noted in flight before the snapshot was taken
+				Integer[] rids = inFlight.toArray(new Integer[0]);
+				counted.clear();
+				if (rids.length > 0) {
+					ColumnarResult seen = esql.queryOn(conn, "SELECT rid FROM Service_Request WHERE rid = ANY(?)",
+						conn.connection.createArrayOf("integer", rids));
+					for (int i = 0; i < seen.getRowCount(); ++i)
+						counted.add(seen.getInt(i, 0));
+				}
+				conn.connection.commit();
+			}catch (SQLException e){
+				conn.connection.rollback();
+				throw e;
+			}finally{
+				try {
+					conn.connection.setTransactionIsolation(isolation);
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+			for (int i = 0; i < counts.getRowCount(); ++i) {
+				Car car = new Car(counts.getString(i, 0), counts.getString(i, 1),
+					counts.getString(i, 2), counts.getInt(i, 3));
+				byVin.put(car.vin, car);
+				ranked.add(car);
+			}
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Every VIN on file and the customer who owns the car, kept off the
+	 * heap so that AddCar and the service request checks can tell whether
+	 * a car exists, and whose it is, without a round trip.
+	 *
+	 * A VIN of 16 letters and digits packs into 96 bits (6 per character)
+	 * and shares one 16 byte slot with the owner's id; slots live in a
+	 * direct buffer and are found by open addressing with linear probing,
+	 * so ten million cars take under 200 MB and a lookup allocates nothing.
+	 * The index is loaded in the background at startup and updated by
+	 * addCar and addOwnership; until it is loaded, and for VINs that do not
+	 * pack, owner() answers UNKNOWN and the caller asks the DBMS.
+	 *
+	 * Cars added by other processes are not in the index until reload()
+	 * is called, so only a hit is final: callers ask the DBMS about a VIN
+	 * the index answers ABSENT for.
+	 */
+	public static class VinIndex {
+		//owner() answers: not loaded or not packable, no such car, car without an owner
+		public static final int UNKNOWN = Integer.MIN_VALUE;
+		public static final int ABSENT = -2;
+		public static final int NO_OWNER = -1;
+		static final int DEFAULT_CAPACITY = 1 << 16;
+		//slots kept free; a full table would make misses walk every slot
+		static final double MAX_LOAD = 0.85;
+		static final double LOAD_AFTER_GROWTH = 0.6;
+		//one direct buffer holds at most 2 GB
+		static final int SLOT_BYTES = 16;
+		static final int MAX_CAPACITY = Integer.MAX_VALUE / SLOT_BYTES;
+		//rows copied into the table under one lock while loading
+		static final int LOAD_BATCH = 4096;
+		//the newest Owns row of a car names its owner
+		static final String LOAD_QUERY =
+			"SELECT C.vin, O.customer_id FROM Car C LEFT JOIN " +
+			"(SELECT DISTINCT ON (car_vin) car_vin, customer_id FROM Owns ORDER BY car_vin, ownership_id DESC) O " +
+			"ON O.car_vin = C.vin";
+		static final String ESTIMATE_QUERY =
+			"SELECT reltuples::bigint FROM pg_class WHERE oid = 'car'::regclass";
+
+		private final MechanicShop esql;
+		private final boolean enabled;
+		private final StampedLock lock = new StampedLock();
+		//two longs per slot: the first 60 VIN bits and 4 more, then 32 VIN bits and the owner
+		private LongBuffer slots;
+		private int capacity;
+		private int size;
+		private volatile boolean loaded = false;
+		private volatile String failure = null;
+		//bumped by reload() so that an older load stops
+		private int generation = 0;
+
+		VinIndex(MechanicShop esql, boolean enabled) {
+			this.esql = esql;
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Returns the id of the customer who owns the car, NO_OWNER when
+		 * nobody does, ABSENT when there is no such car, or UNKNOWN when the
+		 * index cannot tell.
+		 */
+		public int owner(String vin) {
+			if (!loaded) return UNKNOWN;
+			long head = pack(vin, 0, 10);
+			long tail = pack(vin, 10, 16);
+			if (head < 0 || tail < 0) return UNKNOWN;
+			long first = head | tail << 60;
+			long second = tail >>> 4;
+			//optimistic first; a writer in between makes us retry under the lock
+			long stamp = lock.tryOptimisticRead();
+			int owner = find(first, second);
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					owner = find(first, second);
+				}finally{
+					lock.unlockRead(stamp);
+				}
+			}
+			return owner;
+		}
+
+		/**
+		 * Records a car that was just added.
+		 */
+		public void add(String vin) {
+			put(vin, NO_OWNER, false);
+		}
+
+		/**
+		 * Records the new owner of a car.
+		 */
+		public void setOwner(String vin, int customerId) {
+			put(vin, customerId, true);
+		}
+
+		/**
+		 * Drops the index and loads it again on a background thread.  Does
+		 * nothing when the index was turned off.
+		 */
+		public void reload() {
+			if (!enabled) return;
+			final int loading;
+			long stamp = lock.writeLock();
+			try {
+				loading = ++generation;
+				loaded = false;
+				failure = null;
+				slots = null;
+				capacity = 0;
+				size = 0;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+			Thread loader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						load(loading);
+					}catch (Exception e){
+						failure = e.getMessage();
+						System.err.println("Warning - VIN index not loaded, VINs are checked in the database: " + e.getMessage());
+					}
+				}
+			}, "vin-index-loader");
+			loader.setDaemon(true);
+			loader.start();
+		}
+
+		public boolean isLoaded() {
+			return loaded;
+		}
+
+		public String toString() {
+			if (!enabled) return "off";
+			if (failure != null) return "failed: " + failure;
+			long stamp = lock.readLock();
+			try {
+				return (loaded ? "" : "loading, ") + size + " VINs in " + capacity + " slots, " +
+					((long) capacity * SLOT_BYTES >> 20) + " MB off heap";
+			}finally{
+				lock.unlockRead(stamp);
+			}
+		}
+
+		private void load(int loading) throws SQLException {
+			long start = System.nanoTime();
+			long rows = 0;
+			boolean failed = false;
+			PooledConnection conn = esql._pool.borrow();
+			Statement stmt = null;
+			try {
+				//the driver only fetches in chunks inside a transaction
+				conn.connection.setAutoCommit(false);
+				stmt = conn.connection.createStatement();
+				ResultSet rs = stmt.executeQuery(ESTIMATE_QUERY);
+				long estimate = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				if (!resize(loading, (int) Math.min(MAX_CAPACITY, Math.max(DEFAULT_CAPACITY, estimate / LOAD_AFTER_GROWTH))))
+					return;
+				stmt.setFetchSize(LOAD_BATCH);
+				rs = stmt.executeQuery(LOAD_QUERY);
+				String[] vins = new String[LOAD_BATCH];
+				int[] owners = new int[LOAD_BATCH];
+				int batched = 0;
+				while (rs.next()) {
+					vins[batched] = rs.getString(1);
+					owners[batched] = rs.getInt(2);
+					if (rs.wasNull()) owners[batched] = NO_OWNER;
+					if (++batched == LOAD_BATCH) {
+						if (!putAll(loading, vins, owners, batched)) return;
+						rows += batched;
+						batched = 0;
+					}
+				}
+				rs.close();
+				if (!putAll(loading, vins, owners, batched)) return;
+				rows += batched;
+				long stamp = lock.writeLock();
+				try {
+					if (generation == loading) loaded = true;
+				}finally{
+					lock.unlockWrite(stamp);
+				}
+			}catch (SQLException e){
+				failed = true;
+				throw e;
+			}finally{
+				//counted, but kept out of the slow query log: a full scan is slow by design
+				esql._metrics.statement("VinIndex.load", start, rows, 1 + rows / LOAD_BATCH, failed);
+				try {
+					if (stmt != null) stmt.close();
+					//ends the read-only transaction, whether or not it failed
+					conn.connection.rollback();
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+		}
+
+		//loaded rows never replace a car added or sold while the load ran
+		private boolean putAll(int loading, String[] vins, int[] owners, int count) {
+			long stamp = lock.writeLock();
+			try {
+				if (generation != loading) return false;
+				for (int i = 0; i < count; ++i)
+					if (!insert(vins[i], owners[i], false)) return false;
+				return true;
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private void put(String vin, int owner, boolean replace) {
+			long stamp = lock.writeLock();
+			try {
+				//before the load sets up the table there is nothing to update
+				if (slots != null) insert(vin, owner, replace);
+			}finally{
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		//with the write lock held; false when the index had to be given up
+		private boolean insert(String vin, int owner, boolean replace) {
+			long head = pack(vin, 0, 10);
+			long tail = pack(vin, 10, 16);
+			if (head < 0 || tail < 0) return true;
+			if (size + 1 > capacity * MAX_LOAD &&
+					!resize(generation, (int) Math.min(MAX_CAPACITY, (size + 1) / LOAD_AFTER_GROWTH))) {
+				return false;
+			}
+			long first = head | tail << 60;
+			long second = tail >>> 4;
+			int slot = home(first, second, capacity);
+			while (true) {
+				long stored = slots.get(2 * slot);
+				if (stored == 0) {
+					slots.put(2 * slot, first);
+					slots.put(2 * slot + 1, second << 32 | owner & 0xFFFFFFFFL);
+					++size;
+					return true;
+				}
+				if (stored == first && slots.get(2 * slot + 1) >>> 32 == second) {
+					//a known car keeps its owner when it is added again
+					if (replace) slots.put(2 * slot + 1, second << 32 | owner & 0xFFFFFFFFL);
+					return true;
+				}
+				if (++slot == capacity) slot = 0;
+			}
+		}
+
+		private int find(long first, long second) {
+			LongBuffer table = slots;
+			if (table == null) return UNKNOWN;
+			//sized from the buffer itself, which an optimistic read may see mid-resize
+			int tableCapacity = table.capacity() / 2;
+			int slot = home(first, second, tableCapacity);
+			for (int probes = 0; probes < tableCapacity; ++probes) {
+				long stored = table.get(2 * slot);
+				if (stored == 0) return ABSENT;
+				long rest = table.get(2 * slot + 1);
+				if (stored == first && rest >>> 32 == second) return (int) rest;
+				if (++slot == tableCapacity) slot = 0;
+			}
+			return ABSENT;
+		}
+
+		//with the write lock held; moves every car into a table of the given size
+		private boolean resize(int loading, int newCapacity) {
+			if (generation != loading) return false;
+			if (newCapacity <= size / MAX_LOAD) {
+				failure = "more than " + size + " VINs";
+				loaded = false;
+				slots = null;
+				capacity = 0;
+				size = 0;
+				System.err.println("Warning - VIN index is full, VINs are checked in the database");
+				return false;
+			}
+			LongBuffer old = slots;
+			int oldCapacity = capacity;
+			slots = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+			capacity = newCapacity;
+			for (int i = 0; i < oldCapacity; ++i) {
+				long first = old.get(2 * i);
+				if (first == 0) continue;
+				int slot = home(first, old.get(2 * i + 1) >>> 32, newCapacity);
+				while (slots.get(2 * slot) != 0)
+					if (++slot == newCapacity) slot = 0;
+				slots.put(2 * slot, first);
+				slots.put(2 * slot + 1, old.get(2 * i + 1));
+			}
+			return true;
+		}
+
+		//spreads the key bits, then maps them onto [0, capacity) without a division
+		private static int home(long first, long second, int capacity) {
+			long h = first ^ second * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			return (int) ((h >>> 32) * capacity >>> 32);
+		}
+
+		/**
+		 * Packs characters [from, to) of a VIN at 6 bits each, digits as
+		 * 1-10, upper case letters as 11-36 and lower case ones as 37-62, so
+		 * that a packed VIN is never all zeros.  Returns -1 when the VIN is
+		 * not 16 characters long or has any other character.
+		 */
+		static long pack(String vin, int from, int to) {
+			if (vin == null || vin.length() != 16) return -1;
+			long packed = 0;
+			for (int i = to - 1; i >= from; --i) {
+				char c = vin.charAt(i);
+				int code;
+				if (c >= '0' && c <= '9') code = c - '0' + 1;
+				else if (c >= 'A' && c <= 'Z') code = c - 'A' + 11;
+				else if (c >= 'a' && c <= 'z') code = c - 'a' + 37;
+				else return -1;
+				packed = packed << 6 | code;
+			}
+			return packed;
+		}
+	}
+
+	/**
+	 * Customer names for the front desk's "did you mean" search: last
+	 * names matched exactly, by prefix or by Soundex code, case and
+	 * punctuation ignored, with an optional first name to rank by.
+	 *
+	 * Distinct names are kept in sorted arrays, so a prefix is a binary
+	 * search and a walk; the customers of each last name are stored next to
+	 * each other, ordered by first name and id, and Soundex codes index
+	 * the last names in 26000 buckets.  A customer costs two ints, so a few
+	 * million take tens of MB and a search touches at most MAX_SCANNED of
+	 * them.  The index is built in the background at startup and rebuilt
+	 * after bulk imports; customers added through addCustomer are kept in a
+	 * short list, searched one by one, until FOLD_AFTER of them are folded
+	 * into the sorted arrays.  Until it is built, search() returns null.
+	 */
+	public static class NameIndex {
+		//match quality of one name; a result scores 4 * last name + first name
+		public static final int EXACT = 3;
+		public static final int PREFIX = 2;
+		public static final int PHONETIC = 1;
+		//customers looked at per search, so that "s" stays fast
+		static final int MAX_SCANNED = 20000;
+		//added customers kept in the list before they are folded into the snapshot
+		static final int FOLD_AFTER = 1000;
+		static final int LOAD_FETCH_SIZE = 4096;
+		static final String LOAD_QUERY = "SELECT id, fname, lname FROM Customer ORDER BY id";
+		//code of each letter a-z; 0 for vowels, h, w and y
+		private static final String SOUNDEX = "01230120022455012623010202";
+		private static final int SOUNDEX_CODES = 26 * 1000;
+
+		/**
+		 * One customer found by search().
+		 */
+		public static class Match {
+			public final int id;
+			public final String fname;
+			public final String lname;
+			public final int score;
+			//order found in; earlier wins a tie
+			final int seq;
+
+			Match(int id, String fname, String lname, int score, int seq) {
+				this.id = id;
+				this.fname = fname;
+				this.lname = lname;
+				this.score = score;
+				this.seq = seq;
+			}
+		}
+
+		//best first
+		private static final Comparator<Match> BY_SCORE = new Comparator<Match>() {
+			public int compare(Match a, Match b) {
+				if (a.score != b.score) return a.score > b.score ? -1 : 1;
+				return Integer.compare(a.seq, b.seq);
+			}
+		};
+
+		/**
+		 * The names as of the last build; never changed once built.
+		 */
+		static class Snapshot {
+			//distinct names, sorted by normalized key; shown is the name as stored
+			String[] lnameKeys, lnameShown, fnameKeys, fnameShown;
+			int[] fnameSoundex;
+			//customers of last name i are postings lnameStart[i] to lnameStart[i + 1] - 1
+			int[] lnameStart, postingIds, postingFnames;
+			//last names with Soundex code c are soundexNames[soundexStart[c]..]
+			int[] soundexStart, soundexNames;
+		}
+
+		//a customer added since the snapshot was built
+		private static class Added {
+			final int id;
+			final String fname, lname, fnameKey, lnameKey;
+
+			Added(int id, String fname, String lname) {
+				this.id = id;
+				this.fname = fname;
+				this.lname = lname;
+				this.fnameKey = normalize(fname);
+				this.lnameKey = normalize(lname);
+			}
+		}
+
+		private final MechanicShop esql;
+		private final boolean enabled;
+		private volatile Snapshot snapshot = null;
+		private final List<Added> added = new ArrayList<Added>();
+		private volatile String failure = null;
+		//bumped by every rebuild so that an older one is thrown away
+		private int generation = 0;
+		//whether a rebuild is running; guarded by added
+		private boolean rebuilding = false;
+
+		NameIndex(MechanicShop esql, boolean enabled) {
+			this.esql = esql;
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Returns up to `limit` customers whose last name matches, best
+		 * first, or null while the index is not built.
+		 *
+		 * @param fname first name to rank by, or null
+		 */
+		public List<Match> search(String lname, String fname, int limit) {
+			Snapshot s = snapshot;
+			if (s == null) return null;
+			String key = normalize(lname);
+			if (key.isEmpty() || limit <= 0) return new ArrayList<Match>();
+			int code = soundex(key);
+			String first = fname == null ? "" : normalize(fname);
+			int firstCode = soundex(first);
+			//first names starting with the term have neighbouring ranks
+			int[] firstRanks = {0, 0};
+			if (!first.isEmpty()) {
+				firstRanks[0] = lowerBound(s.fnameKeys, first);
+				firstRanks[1] = firstRanks[0];
+				while (firstRanks[1] < s.fnameKeys.length && s.fnameKeys[firstRanks[1]].startsWith(first)) ++firstRanks[1];
+			}
+			//the worst kept match on top
+			PriorityQueue<Match> kept = new PriorityQueue<Match>(limit + 1, Collections.reverseOrder(BY_SCORE));
+			int seq = 0;
+			int[] addedIds;
+			synchronized (added) {
+				addedIds = new int[added.size()];
+				for (int i = 0; i < addedIds.length; ++i) {
+					Added customer = added.get(i);
+					addedIds[i] = customer.id;
+					int score = score(key, code, customer.lnameKey, soundex(customer.lnameKey));
+					if (score > 0) {
+						score = 4 * score + score(first, firstCode, customer.fnameKey, soundex(customer.fnameKey));
+						offer(kept, limit, new Match(customer.id, customer.fname, customer.lname, score, seq++));
+					}
+				}
+			}
+			//a customer added while the snapshot was built may be in both
+			Arrays.sort(addedIds);
+			//exact and prefix names sit together at the key's place in the sorted names
+			int scanned = 0;
+			int name = lowerBound(s.lnameKeys, key);
+			for (; name < s.lnameKeys.length && s.lnameKeys[name].startsWith(key) && scanned < MAX_SCANNED; ++name) {
+				int score = s.lnameKeys[name].length() == key.length() ? EXACT : PREFIX;
+				if (cannotImprove(kept, limit, score, first)) break;
+				scanned += collect(s, name, score, first, firstCode, firstRanks, kept, limit, addedIds, seq + scanned, MAX_SCANNED - scanned);
+			}
+			if (code >= 0) {
+				for (int i = s.soundexStart[code]; i < s.soundexStart[code + 1] && scanned < MAX_SCANNED; ++i) {
+					name = s.soundexNames[i];
+					//already taken as a prefix match
+					if (s.lnameKeys[name].startsWith(key)) continue;
+					if (cannotImprove(kept, limit, PHONETIC, first)) break;
+					scanned += collect(s, name, PHONETIC, first, firstCode, firstRanks, kept, limit, addedIds, seq + scanned, MAX_SCANNED - scanned);
+				}
+			}
+			List<Match> matches = new ArrayList<Match>(kept);
+			Collections.sort(matches, BY_SCORE);
+			return matches;
+		}
+
+		/**
+		 * Records a customer that was just added.
+		 */
+		public void add(int id, String fname, String lname) {
+			if (!enabled) return;
+			synchronized (added) {
+				added.add(new Added(id, fname.trim(), lname.trim()));
+				if (added.size() >= FOLD_AFTER && !rebuilding && snapshot != null)
+					rebuild(false);
+			}
+		}
+
+		/**
+		 * Builds the index again on a background thread; the old one keeps
+		 * answering until the new one is ready.  Does nothing when the index
+		 * was turned off.
+		 */
+		public void reload() {
+			if (!enabled) return;
+			synchronized (added) {
+				rebuild(true);
+			}
+		}
+
+		/**
+		 * Builds a new snapshot on a background thread, either from the DBMS
+		 * or by folding the added customers into the current one.  A later
+		 * rebuild, e.g. a reload during a fold, wins.  Callers hold the lock
+		 * on added.
+		 */
+		private void rebuild(final boolean fromDatabase) {
+			final int building = ++generation;
+			final int addedBefore = added.size();
+			final Snapshot base = snapshot;
+			final List<Added> folding = fromDatabase ? null : new ArrayList<Added>(added);
+			rebuilding = true;
+			Thread builder = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Snapshot built = fromDatabase ? build() : fold(base, folding);
+						synchronized (added) {
+							if (generation != building) return;
+							//committed before the scan started, so the scan saw them, or folded in
+							added.subList(0, addedBefore).clear();
+							snapshot = built;
+							failure = null;
+							rebuilding = false;
+						}
+					}catch (Exception e){
+						synchronized (added) {
+							if (generation == building) rebuilding = false;
+						}
+						failure = e.getMessage();
+						System.err.println("Warning - name index not built, names are searched in the database: " + e.getMessage());
+					}
+				}
+			}, fromDatabase ? "name-index-builder" : "name-index-folder");
+			builder.setDaemon(true);
+			builder.start();
+		}
+
+		public boolean isLoaded() {
+			return snapshot != null;
+		}
+
+		public String toString() {
+			if (!enabled) return "off";
+			if (failure != null) return "failed: " + failure;
+			Snapshot s = snapshot;
+			int pending;
+			synchronized (added) {
+				pending = added.size();
+			}
+			if (s == null) return "building";
+			return s.postingIds.length + " customers, " + s.lnameKeys.length + " last names, " +
+				s.fnameKeys.length + " first names, " + pending + " added since";
+		}
+
+		/**
+		 * Offers the customers of one last name, those whose first name
+		 * starts with the first name term before the rest; returns how many
+		 * were looked at.
+		 */
+		private static int collect(Snapshot s, int name, int lnameScore, String first, int firstCode, int[] firstRanks,
+				PriorityQueue<Match> kept, int limit, int[] addedIds, int seq, int budget) {
+			int from = s.lnameStart[name];
+			int to = s.lnameStart[name + 1];
+			//postings of a name are ordered by first name, so the matching ones are a range
+			int begin = first.isEmpty() ? from : lowerBound(s.postingFnames, from, to, firstRanks[0]);
+			int end = first.isEmpty() ? from : lowerBound(s.postingFnames, begin, to, firstRanks[1]);
+			int scanned = 0;
+			for (int pass = 0; pass < 3 && scanned < budget; ++pass) {
+				int i = pass == 0 ? begin : pass == 1 ? from : end;
+				int stop = pass == 0 ? end : pass == 1 ? begin : to;
+				//outside the range a first name can at best sound alike
+				int best = 4 * lnameScore + (first.isEmpty() ? 0 : pass == 0 ? EXACT : PHONETIC);
+				for (; i < stop && scanned < budget; ++i, ++scanned) {
+					int fname = s.postingFnames[i];
+					int score = 4 * lnameScore + score(first, firstCode, s.fnameKeys[fname], s.fnameSoundex[fname]);
+					if (kept.size() == limit && kept.peek().score >= score) {
+						if (kept.peek().score >= best) break;
+						continue;
+					}
+					if (addedIds.length > 0 && Arrays.binarySearch(addedIds, s.postingIds[i]) >= 0) continue;
+					offer(kept, limit, new Match(s.postingIds[i], s.fnameShown[fname], s.lnameShown[name], score, seq + i - from));
+				}
+			}
+			return scanned;
+		}
+
+		//true when no customer of a name matched this well can displace a kept one
+		private static boolean cannotImprove(PriorityQueue<Match> kept, int limit, int lnameScore, String first) {
+			return kept.size() == limit && kept.peek().score >= 4 * lnameScore + (first.isEmpty() ? 0 : EXACT);
+		}
+
+		private static void offer(PriorityQueue<Match> kept, int limit, Match match) {
+			kept.add(match);
+			if (kept.size() > limit) kept.poll();
+		}
+
+		//how well name matches the search term; 0 when it does not, or there is no term
+		private static int score(String term, int termCode, String name, int nameCode) {
+			if (term.isEmpty()) return 0;
+			if (name.startsWith(term)) return name.length() == term.length() ? EXACT : PREFIX;
+			return termCode >= 0 && termCode == nameCode ? PHONETIC : 0;
+		}
+
+		private static int lowerBound(String[] sorted, String key) {
+			int low = 0, high = sorted.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (sorted[mid].compareTo(key) < 0) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+
+		private static int lowerBound(int[] sorted, int low, int high, int key) {
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (sorted[mid] < key) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+
+		private Snapshot build() throws SQLException {
+			long start = System.nanoTime();
+			int customers = 0;
+			boolean failed = false;
+			Map<String, Integer> lnames = new HashMap<String, Integer>();
+			Map<String, Integer> fnames = new HashMap<String, Integer>();
+			List<String> lnameList = new ArrayList<String>();
+			List<String> fnameList = new ArrayList<String>();
+			int[] ids = new int[1 << 16];
+			int[] lnameOf = new int[ids.length];
+			int[] fnameOf = new int[ids.length];
+			PooledConnection conn = esql._pool.borrow();
+			Statement stmt = null;
+			try {
+				//the driver only fetches in chunks inside a transaction
+				conn.connection.setAutoCommit(false);
+				stmt = conn.connection.createStatement();
+				stmt.setFetchSize(LOAD_FETCH_SIZE);
+				ResultSet rs = stmt.executeQuery(LOAD_QUERY);
+				while (rs.next()) {
+					if (customers == ids.length) {
+						ids = Arrays.copyOf(ids, 2 * customers);
+						lnameOf = Arrays.copyOf(lnameOf, 2 * customers);
+						fnameOf = Arrays.copyOf(fnameOf, 2 * customers);
+					}
+					ids[customers] = rs.getInt(1);
+					fnameOf[customers] = intern(fnames, fnameList, rs.getString(2));
+					lnameOf[customers] = intern(lnames, lnameList, rs.getString(3));
+					++customers;
+				}
+				rs.close();
+			}catch (SQLException e){
+				failed = true;
+				throw e;
+			}finally{
+				//counted, but kept out of the slow query log: a full scan is slow by design
+				esql._metrics.statement("NameIndex.build", start, customers, 1 + customers / LOAD_FETCH_SIZE, failed);
+				try {
+					if (stmt != null) stmt.close();
+					conn.connection.rollback();
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+			return index(customers, ids, fnameOf, lnameOf, fnameList, lnameList);
+		}
+
+		/**
+		 * Builds a snapshot holding the customers of s and the added ones,
+		 * without going to the DBMS.
+		 */
+		static Snapshot fold(Snapshot s, List<Added> more) {
+			Map<String, Integer> lnames = new HashMap<String, Integer>();
+			Map<String, Integer> fnames = new HashMap<String, Integer>();
+			List<String> lnameList = new ArrayList<String>(Arrays.asList(s.lnameShown));
+			List<String> fnameList = new ArrayList<String>(Arrays.asList(s.fnameShown));
+			for (int i = 0; i < lnameList.size(); ++i) lnames.put(lnameList.get(i), i);
+			for (int i = 0; i < fnameList.size(); ++i) fnames.put(fnameList.get(i), i);
+			int total = s.postingIds.length + more.size();
+			int[] fnameOf = new int[total];
+			int[] lnameOf = new int[total];
+			//id in the high half and position in the low half, so one sort puts them in id order
+			long[] byId = new long[total];
+			int n = 0;
+			for (int name = 0; name < s.lnameKeys.length; ++name)
+				for (int i = s.lnameStart[name]; i < s.lnameStart[name + 1]; ++i, ++n) {
+					byId[n] = (long) s.postingIds[i] << 32 | n;
+					fnameOf[n] = s.postingFnames[i];
+					lnameOf[n] = name;
+				}
+			for (Added customer : more) {
+				byId[n] = (long) customer.id << 32 | n;
+				fnameOf[n] = intern(fnames, fnameList, customer.fname);
+				lnameOf[n] = intern(lnames, lnameList, customer.lname);
+				++n;
+			}
+			Arrays.sort(byId);
+			int[] ids = new int[total];
+			int[] fnameById = new int[total];
+			int[] lnameById = new int[total];
+			int customers = 0;
+			for (long entry : byId) {
+				int id = (int) (entry >>> 32);
+				int at = (int) entry;
+				//a customer added while the snapshot was built is in both
+				if (customers > 0 && ids[customers - 1] == id) continue;
+				ids[customers] = id;
+				fnameById[customers] = fnameOf[at];
+				lnameById[customers] = lnameOf[at];
+				++customers;
+			}
+			return index(customers, ids, fnameById, lnameById, fnameList, lnameList);
+		}
+
+		/**
+		 * Builds a snapshot from customers given in id order, each with the
+		 * position of its first and last name in the name lists.
+		 */
+		static Snapshot index(int customers, int[] ids, int[] fnameOf, int[] lnameOf,
+				List<String> fnameList, List<String> lnameList) {
+			Snapshot s = new Snapshot();
+			int[] fnameRank = sortNames(fnameList);
+			s.fnameShown = new String[fnameList.size()];
+			s.fnameKeys = new String[fnameList.size()];
+			s.fnameSoundex = new int[fnameList.size()];
+			for (int i = 0; i < fnameRank.length; ++i) {
+				s.fnameShown[fnameRank[i]] = fnameList.get(i);
+				s.fnameKeys[fnameRank[i]] = normalize(fnameList.get(i));
+				s.fnameSoundex[fnameRank[i]] = soundex(s.fnameKeys[fnameRank[i]]);
+			}
+			int[] lnameRank = sortNames(lnameList);
+			s.lnameShown = new String[lnameList.size()];
+			s.lnameKeys = new String[lnameList.size()];
+			for (int i = 0; i < lnameRank.length; ++i) {
+				s.lnameShown[lnameRank[i]] = lnameList.get(i);
+				s.lnameKeys[lnameRank[i]] = normalize(lnameList.get(i));
+			}
+			for (int i = 0; i < customers; ++i) {
+				fnameOf[i] = fnameRank[fnameOf[i]];
+				lnameOf[i] = lnameRank[lnameOf[i]];
+			}
+
+			//rows came by id; sorting by first and then last name keeps that order within a name
+			int[] order = new int[customers];
+			for (int i = 0; i < customers; ++i) order[i] = i;
+			order = countingSort(order, fnameOf, s.fnameKeys.length, null);
+			s.lnameStart = new int[s.lnameKeys.length + 1];
+			order = countingSort(order, lnameOf, s.lnameKeys.length, s.lnameStart);
+			s.postingIds = new int[customers];
+			s.postingFnames = new int[customers];
+			for (int i = 0; i < customers; ++i) {
+				s.postingIds[i] = ids[order[i]];
+				s.postingFnames[i] = fnameOf[order[i]];
+			}
+
+			int[] codes = new int[s.lnameKeys.length];
+			for (int i = 0; i < codes.length; ++i) codes[i] = soundex(s.lnameKeys[i]);
+			//names without a letter have no code and are left out
+			int[] coded = new int[codes.length];
+			int named = 0;
+			for (int i = 0; i < codes.length; ++i)
+				if (codes[i] >= 0) coded[named++] = i;
+			s.soundexStart = new int[SOUNDEX_CODES + 1];
+			s.soundexNames = countingSort(Arrays.copyOf(coded, named), codes, SOUNDEX_CODES, s.soundexStart);
+			return s;
+		}
+
+		/**
+		 * Stable counting sort of `order` by rank[order[i]].  When start is
+		 * not null it receives where each rank begins, plus the total.
+		 */
+		static int[] countingSort(int[] order, int[] rank, int ranks, int[] start) {
+			int[] begin = start != null ? start : new int[ranks + 1];
+			for (int i : order) ++begin[rank[i] + 1];
+			for (int r = 0; r < ranks; ++r) begin[r + 1] += begin[r];
+			int[] next = Arrays.copyOf(begin, ranks);
+			int[] sorted = new int[order.length];
+			for (int i : order) sorted[next[rank[i]]++] = i;
+			return sorted;
+		}
+
+		//numbers distinct names in the order first seen
+		private static int intern(Map<String, Integer> seen, List<String> names, String name) {
+			name = name == null ? "" : name.trim();
+			Integer index = seen.get(name);
+			if (index == null) {
+				index = names.size();
+				seen.put(name, index);
+				names.add(name);
+			}
+			return index;
+		}
+
+		//rank of each name when sorted by key, then as stored
+		private static int[] sortNames(final List<String> names) {
+			final String[] keys = new String[names.size()];
+			Integer[] order = new Integer[keys.length];
+			for (int i = 0; i < keys.length; ++i) {
+				keys[i] = normalize(names.get(i));
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int byKey = keys[a].compareTo(keys[b]);
+					return byKey != 0 ? byKey : names.get(a).compareTo(names.get(b));
+				}
+			});
+			int[] rank = new int[keys.length];
+			for (int i = 0; i < order.length; ++i) rank[order[i]] = i;
+			return rank;
+		}
+
+		/**
+		 * Lower case letters and digits of a name, so that "O'Brien",
+		 * "o brien" and "OBRIEN" are all "obrien".
+		 */
+		static String normalize(String name) {
+			StringBuilder key = new StringBuilder(name.length());
+			for (int i = 0; i < name.length(); ++i) {
+				char c = name.charAt(i);
+				if (Character.isLetterOrDigit(c)) key.append(Character.toLowerCase(c));
+			}
+			return key.toString();
+		}
+
+		/**
+		 * American Soundex of a normalized name, as (letter - 'a') * 1000 plus
+		 * the three digits, e.g. 17163 for R163 (Robert, Rupert); -1 when the
+		 * name has no letter a-z.
+		 */
+		static int soundex(String key) {
+			int first = -1;
+			int code = 0;
+			int digits = 0;
+			int last = 0;
+			for (int i = 0; i < key.length() && digits < 3; ++i) {
+				char c = key.charAt(i);
+				if (c < 'a' || c > 'z') continue;
+				int digit = SOUNDEX.charAt(c - 'a') - '0';
+				if (first < 0) {
+					first = c - 'a';
+					last = digit;
+				}else if (digit != 0) {
+					if (digit != last) {
+						code = code * 10 + digit;
+						++digits;
+					}
+					last = digit;
+				}else if (c != 'h' && c != 'w') {
+					//a vowel between two letters of the same code keeps both
+					last = 0;
+				}
+			}
+			if (first < 0) return -1;
+			for (; digits < 3; ++digits) code *= 10;
+			return first * 1000 + code;
+		}
+	}
+
+	/**
+	 * A list report that is read one page at a time with keyset (seek)
+	 * pagination: each page starts right after the sort key of the last
+	 * row of the previous one, so no page rescans or offsets through the
+	 * rows before it.  The query selects the printed columns first, then
+	 * any key column not already printed; its WHERE clause takes the
+	 * report's parameters, in the order they are named in parameters.
+	 */
+	public static class KeysetReport {
+		public final String name;
+		//the bounds the report's query takes, e.g. "bill" for c.bill < ?
+		public final List<String> parameters;
+		final String query;
+		//leading columns that make up the report; the rest only carry keys
+		final int shown;
+		final boolean descending;
+		final Key[] keys;
+
+		KeysetReport(String name, String[] parameters, String query, int shown, boolean descending, Key... keys) {
+			this.name = name;
+			this.parameters = Collections.unmodifiableList(Arrays.asList(parameters));
+			this.query = query;
+			this.shown = shown;
+			this.descending = descending;
+			this.keys = keys;
+		}
+
+		/**
+		 * One column of the sort key: its SQL expression and type, and
+		 * where the query returns it.
+		 */
+		static class Key {
+			final String expression;
+			final String sqlType;
+			final int column;
+
+			Key(String expression, String sqlType, int column) {
+				this.expression = expression;
+				this.sqlType = sqlType;
+				this.column = column;
+			}
+		}
+
+		String sql(boolean after) {
+			StringBuilder sql = new StringBuilder(query);
+			StringBuilder order = new StringBuilder(" ORDER BY ");
+			if (after) {
+				StringBuilder bound = new StringBuilder();
+				sql.append(" AND (");
+				for (int i = 0; i < keys.length; ++i) {
+					sql.append(i == 0 ? "" : ", ").append(keys[i].expression);
+					bound.append(i == 0 ? "" : ", ").append("CAST(? AS ").append(keys[i].sqlType).append(")");
+				}
+				sql.append(descending ? ") < (" : ") > (").append(bound).append(")");
+			}
+			for (int i = 0; i < keys.length; ++i)
+				order.append(i == 0 ? "" : ", ").append(keys[i].expression).append(descending ? " DESC" : " ASC");
+			return sql.append(order).append(" LIMIT ?").toString();
+		}
+
+		/**
+		 * The continuation token after a row: the report name and the row's
+		 * sort key, base64 encoded.  Callers treat it as opaque.
+		 */
+		String token(ColumnarResult rows, int row) {
+			StringBuilder token = new StringBuilder(name);
+			for (Key key : keys)
+				token.append('\n').append(rows.getString(row, key.column));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		String[] parse(String token) {
+			String[] parts;
+			try {
+				parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\n", -1);
+			}catch (IllegalArgumentException e){
+				parts = new String[0];
+			}
+			if (parts.length != keys.length + 1 || !parts[0].equals(name))
+				throw new IllegalArgumentException("Invalid page token for report " + name);
+			return Arrays.copyOfRange(parts, 1, parts.length);
+		}
+	}
+
+	/**
+	 * One page of a KeysetReport, and the token of the next page (null on
+	 * the last page).
+	 */
+	public static class ReportPage {
+		public final ColumnarResult rows;
+		public final String next;
+		//how many leading columns of rows belong to the report
+		public final int columns;
+
+		ReportPage(ColumnarResult rows, String next, int columns) {
+			this.rows = rows;
+			this.next = next;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * Method to read one page of a list report.
+	 * 
+	 * @param report the report to read
+	 * @param pageSize most rows to return
+	 * @param token the token of the previous page, or null for the first
+	 * @param params the report's parameters
+	 * @return the page and the token of the next one
+	 * @throws java.sql.SQLException when failed to execute the query
+	 * @throws IllegalArgumentException when the token is not one of this report's
+	 */
+	public ReportPage reportPage (KeysetReport report, int pageSize, String token, Object... params) throws SQLException {
+		return reportPage (null, report, pageSize, token, params);
+	}
+
+	//reads the page on `conn`, inside the caller's transaction, or on a pooled connection when null
+	ReportPage reportPage (PooledConnection conn, KeysetReport report, int pageSize, String token, Object... params) throws SQLException {
+		if (pageSize < 1)
+			throw new IllegalArgumentException ("Page size should be positive.");
+		if (params.length != report.parameters.size ())
+			throw new IllegalArgumentException ("Report " + report.name + " takes " + report.parameters);
+		List<Object> args = new ArrayList<Object> (Arrays.asList (params));
+		if (token != null)
+			args.addAll (Arrays.asList (report.parse (token)));
+		args.add (pageSize);
+		ColumnarResult rows = conn == null
+			? executeReadQuery (report.sql (token != null), args.toArray ())
+			: queryOn (conn, report.sql (token != null), args.toArray ());
+		String next = null;
+		if (rows.getRowCount () == pageSize)
+			next = report.token (rows, pageSize - 1);
+		return new ReportPage (rows, next, report.shown);
+	}
+
+	/**
+	 * Method to ask the planner how it would read the first page of a
+	 * report for the given parameters.
+	 * 
+	 * @return the tables of at least SEQ_SCAN_MIN_ROWS rows the plan reads
+	 *         with a sequential scan
+	 * @throws java.sql.SQLException when failed to explain the query
+	 */
+	public List<String> sequentialScans (KeysetReport report, Object... params) throws SQLException {
+		List<Object> args = new ArrayList<Object> (Arrays.asList (params));
+		args.add (REPORT_PAGE_SIZE);
+		Set<String> tables = new LinkedHashSet<String> ();
+		for (List<String> line : executeQueryAndReturnResult ("EXPLAIN " + report.sql (false), args.toArray ())) {
+			String plan = line.get (0);
+			int at = plan.indexOf ("Seq Scan on ");
+			if (at < 0) continue;
+			//"Seq Scan on car c  (cost=..." -> car
+			String table = plan.substring (at + "Seq Scan on ".length ()).trim ();
+			int end = table.indexOf (' ');
+			tables.add (end < 0 ? table : table.substring (0, end));
+		}
+		List<String> large = new ArrayList<String> ();
+		if (tables.isEmpty ())
+			return large;
+		//a sequential scan is the right plan for a small table, so only tables the statistics count as large are kept
+		StringBuilder sql = new StringBuilder ("SELECT relname FROM pg_class WHERE reltuples >= ? AND relname IN (");
+		List<Object> names = new ArrayList<Object> ();
+		names.add (SEQ_SCAN_MIN_ROWS);
+		for (String table : tables) {
+			sql.append (names.size () == 1 ? "?" : ", ?");
+			names.add (table);
+		}
+		sql.append (")");
+		for (List<String> row : executeQueryAndReturnResult (sql.toString (), names.toArray ()))
+			large.add (row.get (0));
+		return large;
+	}
+
+	/**
+	 * Method to print every page of a list report to standard out.
+	 * 
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute a query
+	 */
+	public int printReport (KeysetReport report, Object... params) throws SQLException {
+		PrintWriter out = new PrintWriter (new BufferedWriter (new OutputStreamWriter (System.out), OUTPUT_BUFFER_SIZE));
+		int rowCount = 0;
+		String token = null;
+		//the plan is checked once per report and parameter choice, not on every run
+		if (EXPLAIN_REPORTS && _explainedReports.add (Arrays.asList (report.name, Arrays.asList (params)))) {
+			List<String> scans = sequentialScans (report, params);
+			if (!scans.isEmpty ())
+				System.err.println ("Warning: report " + report.name + " with " + report.parameters + " = " +
+					Arrays.toString (params) + " scans " + scans + " sequentially; check the indexes on those tables.");
+		}
+		try {
+			do {
+				ReportPage page = reportPage (report, REPORT_PAGE_SIZE, token, params);
+				if (rowCount == 0 && page.rows.getRowCount () > 0) {
+					for (int i = 0; i < page.columns; ++i)
+						out.print (page.rows.getColumnName (i) + "\t");
+					out.println ();
+				}
+				for (int row = 0; row < page.rows.getRowCount (); ++row) {
+					for (int i = 0; i < page.columns; ++i)
+						out.print (page.rows.getString (row, i) + "\t");
+					out.println ();
+				}
+				rowCount += page.rows.getRowCount ();
+				token = page.next;
+			} while (token != null);
+		}finally{
+			out.flush ();
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Method to recompute the Customer_Billing rollup from Closed_Request,
+	 * e.g. after closed requests were bulk loaded.
+	 * 
+	 * @throws java.sql.SQLException when the rebuild failed
+	 */
+	public void rebuildBillingRollup () throws SQLException {
+		rebuildRollup ("Customer_Billing", Schema.BACKFILL_BILLING);
+	}
+
+	/**
+	 * Method to recompute the Customer_Car_Count rollup from Owns, e.g.
+	 * after ownerships were bulk loaded.
+	 * 
+	 * @throws java.sql.SQLException when the rebuild failed
+	 */
+	public void rebuildCarCountRollup () throws SQLException {
+		rebuildRollup ("Customer_Car_Count", Schema.BACKFILL_CAR_COUNT);
+	}
+
+	//empties a rollup table and refills it in one transaction
+	private void rebuildRollup (String table, String backfill) throws SQLException {
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			conn.connection.setAutoCommit (false);
+			conn.statements.prepare ("DELETE FROM " + table).executeUpdate ();
+			conn.statements.prepare (backfill).executeUpdate ();
+			conn.connection.commit ();
+		}catch (SQLException e){
+			conn.connection.rollback ();
+			throw e;
+		}finally{
+			try {
+				conn.connection.setAutoCommit (true);
+			}finally{
+				this._pool.release (conn);
+			}
+		}
+	}
+
+	/**
+	 * Method to bring derived state up to date after rows were loaded
+	 * straight into a table, bypassing the add/insert/close methods.
+	 * 
+	 * @param table the table that was loaded
+	 * @throws java.sql.SQLException when a refresh failed
+	 */
+	void refreshAfterBulkLoad (BulkLoader.Table table) throws SQLException {
+		//rows came with their own keys, so move the allocator past them
+		if (table.key != null)
+			this._keys.reset (table.key);
+		//they skipped insertServiceRequest, so recount on next use
+		if (table == BulkLoader.Table.CAR || table == BulkLoader.Table.SERVICE_REQUEST)
+			this._topK.invalidate ();
+		//and addOwnership and closeServiceRequest, so their rollups are rebuilt
+		if (table == BulkLoader.Table.OWNS)
+			rebuildCarCountRollup ();
+		if (table == BulkLoader.Table.CLOSED_REQUEST)
+			rebuildBillingRollup ();
+		//and the lookup caches may have missed the rows
+		switch (table) {
+			case CUSTOMER: this._customersById.clear (); this._customersByLname.clear (); break;
+			case MECHANIC: this._mechanicsById.clear (); break;
+			case CAR: this._carsByVin.clear (); this._ownedCars.clear (); break;
+			case OWNS: this._ownedCars.clear (); break;
+			default: break;
+		}
+		//and the indexes missed the customers, cars or owners
+		if (table == BulkLoader.Table.CUSTOMER)
+			this._names.reload ();
+		if (table == BulkLoader.Table.CAR || table == BulkLoader.Table.OWNS)
+			this._vins.reload ();
+	}
+
+	/**
+	 * Tables, indexes and key sequences the shop code relies on beyond the
+	 * course schema.
+	 * Every statement is idempotent; they run in order at startup, in one
+	 * transaction guarded by an advisory lock so that clients starting at
+	 * the same time do not run them twice.
+	 */
+	static class Schema {
+		//advisory lock key taken while migrating
+		static final long MIGRATION_LOCK = 166_05L;
+
+		static final String BACKFILL_BILLING =
+			"INSERT INTO Customer_Billing(customer_id, total) " +
+			"SELECT SR.customer_id, SUM(CR.bill) FROM Closed_Request CR, Service_Request SR " +
+			"WHERE CR.rid = SR.rid GROUP BY SR.customer_id";
+		static final String BACKFILL_CAR_COUNT =
+			"INSERT INTO Customer_Car_Count(customer_id, cars) " +
+			"SELECT customer_id, COUNT(*) FROM Owns GROUP BY customer_id";
+
+		static final String[] MIGRATIONS = {
+			//total bill per customer, kept current by closeServiceRequest
+			"CREATE TABLE IF NOT EXISTS Customer_Billing (" +
+				"customer_id INTEGER PRIMARY KEY, total BIGINT NOT NULL)",
+			"CREATE INDEX IF NOT EXISTS customer_billing_total_idx ON Customer_Billing(total, customer_id)",
+			//fills the rollup the first time it is created
+			BACKFILL_BILLING + " HAVING NOT EXISTS (SELECT 1 FROM Customer_Billing)",
+			//cars owned per customer, kept current by addOwnership
+			"CREATE TABLE IF NOT EXISTS Customer_Car_Count (" +
+				"customer_id INTEGER PRIMARY KEY, cars INTEGER NOT NULL)",
+			"CREATE INDEX IF NOT EXISTS customer_car_count_cars_idx ON Customer_Car_Count(cars, customer_id)",
+			BACKFILL_CAR_COUNT + " HAVING NOT EXISTS (SELECT 1 FROM Customer_Car_Count)",
+			//range filters of the list reports, and the Owns lookups by customer
+			"CREATE INDEX IF NOT EXISTS closed_request_bill_idx ON Closed_Request(bill)",
+			//the order bill-less-than pages in, so a page seeks to its first date instead of sorting every bill
+			"CREATE INDEX IF NOT EXISTS closed_request_date_idx ON Closed_Request(date)",
+			"CREATE INDEX IF NOT EXISTS car_year_idx ON Car(year)",
+			"CREATE INDEX IF NOT EXISTS service_request_car_vin_odometer_idx ON Service_Request(car_vin, odometer)",
+			"CREATE INDEX IF NOT EXISTS owns_customer_id_idx ON Owns(customer_id)",
+		};
+
+		static void migrate(MechanicShop esql) throws SQLException {
+			List<String> migrations = new ArrayList<String>(Arrays.asList(MIGRATIONS));
+			migrations.addAll(KeyAllocator.setup());
+			runLocked(esql, migrations);
+		}
+
+		/**
+		 * Runs statements in one transaction that holds the migration lock.
+		 */
+		static void runLocked(MechanicShop esql, List<String> statements) throws SQLException {
+			PooledConnection conn = esql._pool.borrow();
+			try {
+				conn.connection.setAutoCommit(false);
+				conn.statements.prepare("SELECT pg_advisory_xact_lock(?)", MIGRATION_LOCK).execute();
+				for (String statement : statements)
+					conn.statements.prepare(statement).execute();
+				conn.connection.commit();
+			}catch (SQLException e){
+				conn.connection.rollback();
+				throw e;
+			}finally{
+				try {
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to close a service request in one transaction.  The request
+	 * row is locked first, so two clerks closing the same request are
+	 * serialized, and a single INSERT ... RETURNING then checks the
+	 * mechanic, the closing date and that the request is still open while
+	 * inserting the Closed_Request row.
+	 * 
+	 * @param rid the service request to close
+	 * @param mid the mechanic who did the work
+	 * @param date the closing date (M/D/YYYY)
+	 * @param comment the mechanic's comment
+	 * @param bill the amount billed
+	 * @return the outcome and, when closed, the inserted row
+	 * @throws java.sql.SQLException when the transaction failed
+	 */
+	public CloseResult closeServiceRequest (int rid, int mid, String date, String comment, int bill) throws SQLException {
+		int wid = allocateKey (KeyAllocator.Key.CLOSED_REQUEST);
+
+		//each step is timed on its own, so a slow close can be pinned on one
+		String step = "closeServiceRequest lock";
+		long start = System.nanoTime ();
+		//borrows one connection for the whole transaction
+		PooledConnection conn = this._pool.borrow ();
+		try {
+			conn.connection.setAutoCommit (false);
+
+			//locks the request, later closes of the same rid wait here
+			PreparedStatement stmt = conn.statements.prepare (
+				"SELECT rid FROM Service_Request WHERE rid = ? FOR UPDATE", rid);
+			ResultSet rs = stmt.executeQuery ();
+			boolean found = rs.next ();
+			rs.close ();
+			this._metrics.statement (step, start, found ? 1 : 0, 1, false);
+			if (!found) {
+				conn.connection.rollback ();
+				return new CloseResult (CloseOutcome.NOT_FOUND, null, null);
+			}
+
+			//validates and inserts in one statement
+			step = "closeServiceRequest validate+insert";
+			start = System.nanoTime ();
+			stmt = conn.statements.prepare (
+				"WITH chk AS (SELECT " +
+				"EXISTS(SELECT 1 FROM Closed_Request WHERE rid = ?) AS closed, " +
+				"EXISTS(SELECT 1 FROM Mechanic WHERE id = ?) AS mechanic, " +
+				"EXISTS(SELECT 1 FROM Service_Request WHERE rid = ? AND date <= CAST(? AS DATE)) AS in_order), " +
+				"ins AS (INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill) " +
+				"SELECT ?, ?, ?, CAST(? AS DATE), ?, ? FROM chk " +
+				"WHERE NOT chk.closed AND chk.mechanic AND chk.in_order " +
+				"RETURNING *), " +
+				//adds the bill to the customer's total in the same transaction
+				"billing AS (INSERT INTO Customer_Billing(customer_id, total) " +
+				"SELECT SR.customer_id, ins.bill FROM ins, Service_Request SR WHERE SR.rid = ins.rid " +
+				"ON CONFLICT (customer_id) DO UPDATE SET total = Customer_Billing.total + EXCLUDED.total) " +
+				"SELECT chk.closed, chk.mechanic, chk.in_order, ins.* FROM chk LEFT JOIN ins ON true",
+				rid, mid, rid, date, wid, rid, mid, date, comment, bill);
+			rs = stmt.executeQuery ();
+			rs.next ();
+			CloseOutcome outcome;
+			if (rs.getBoolean (1)) outcome = CloseOutcome.ALREADY_CLOSED;
+			else if (!rs.getBoolean (2)) outcome = CloseOutcome.BAD_MECHANIC;
+			else if (!rs.getBoolean (3)) outcome = CloseOutcome.DATE_BEFORE_OPEN;
+			else outcome = CloseOutcome.CLOSED;
+
+			List<String> columns = null;
+			List<String> row = null;
+			if (outcome == CloseOutcome.CLOSED) {
+				ResultSetMetaData rsmd = rs.getMetaData ();
+				columns = new ArrayList<String> ();
+				row = new ArrayList<String> ();
+				for (int i = 4; i <= rsmd.getColumnCount (); ++i) {
+					columns.add (rsmd.getColumnName (i));
+					row.add (rs.getString (i));
+				}
+			}
+			rs.close ();
+			this._metrics.statement (step, start, outcome == CloseOutcome.CLOSED ? 1 : 0, 1, false);
+			step = "closeServiceRequest commit";
+			start = System.nanoTime ();
+			conn.connection.commit ();
+			this._metrics.statement (step, start, 0, 1, false);
+			this._replicas.wrote ();
+			return new CloseResult (outcome, columns, row);
+		}catch (SQLException e){
+			this._metrics.statement (step, start, 0, 1, true);
+			conn.connection.rollback ();
+			throw e;
+		}finally{
+			try {
+				conn.connection.setAutoCommit (true);
+			}finally{
+				this._pool.release (conn);
+			}
+		}
+	}
+
+	public enum CloseOutcome { CLOSED, NOT_FOUND, ALREADY_CLOSED, BAD_MECHANIC, DATE_BEFORE_OPEN }
+
+	/**
+	 * What closeServiceRequest did, with the inserted Closed_Request row
+	 * when the request was closed.
+	 */
+	public static class CloseResult {
+		public final CloseOutcome outcome;
+		public final List<String> columns;
+		public final List<String> row;
+
+		CloseResult(CloseOutcome outcome, List<String> columns, List<String> row) {
+			this.outcome = outcome;
+			this.columns = columns;
+			this.row = row;
+		}
+	}
+
+	/**
+	 * Loads CSV files into the shop tables in bulk.  Every row is checked
+	 * with the same rules the interactive menu applies (no digits in
+	 * names, (xxx)xxx-xxxx phones, 16 character VINs, valid dates, ...);
+	 * rows that fail are reported and skipped.  Accepted rows are streamed
+	 * to Postgres with COPY when the driver supports it and with JDBC batch
+	 * inserts otherwise, one transaction per chunk of CHUNK_SIZE rows.
+	 *
+	 * Files hold the table's columns in the order listed in Table; a
+	 * header line with those column names is skipped.
+	 */
+	public static class BulkLoader {
+		//rows sent per COPY / batch transaction
+		static final int CHUNK_SIZE = 10000;
+		//rejected rows kept for the report
+		static final int MAX_REPORTED_REJECTS = 100;
+
+		public enum Table {
+			CUSTOMER ("Customer", KeyAllocator.Key.CUSTOMER, "id", "fname", "lname", "phone", "address"),
+			MECHANIC ("Mechanic", KeyAllocator.Key.MECHANIC, "id", "fname", "lname", "experience"),
+			CAR ("Car", null, "vin", "make", "model", "year"),
+			OWNS ("Owns", KeyAllocator.Key.OWNS, "ownership_id", "customer_id", "car_vin"),
+			SERVICE_REQUEST ("Service_Request", KeyAllocator.Key.SERVICE_REQUEST,
+				"rid", "customer_id", "car_vin", "date", "odometer", "complain"),
+			CLOSED_REQUEST ("Closed_Request", KeyAllocator.Key.CLOSED_REQUEST,
+				"wid", "rid", "mid", "date", "comment", "bill");
+
+			final String name;
+			final KeyAllocator.Key key;
+			final String[] columns;
+
+			Table(String name, KeyAllocator.Key key, String... columns) {
+				this.name = name;
+				this.key = key;
+				this.columns = columns;
+			}
+
+			public static Table forName(String name) {
+				for (Table table : values())
+					if (table.name.equalsIgnoreCase(name)) return table;
+				throw new IllegalArgumentException("Unknown table: " + name);
+			}
+		}
+
+		/**
+		 * Counts and timing of one load.
+		 */
+		public static class Report {
+			public long accepted = 0;
+			public long rejected = 0;
+			public long elapsedMillis = 0;
+			public final List<String> rejects = new ArrayList<String>();
+
+			public double rowsPerSecond() {
+				return elapsedMillis == 0 ? accepted : accepted * 1000.0 / elapsedMillis;
+			}
+
+			public String toString() {
+				return String.format("accepted: %d, rejected: %d, elapsed: %.1f s, throughput: %.0f rows/s",
+					accepted, rejected, elapsedMillis / 1000.0, rowsPerSecond());
+			}
+		}
+
+		private final MechanicShop esql;
+
+		public BulkLoader(MechanicShop esql) {
+			this.esql = esql;
+		}
+
+		/**
+		 * Loads every valid row of a CSV stream into a table.
+		 */
+		public Report load(Table table, Reader csv) throws SQLException, IOException {
+			return load(table, csv, true);
+		}
+
+		/**
+		 * Loads a CSV stream.  With refresh == false the key allocator,
+		 * top-K index and billing rollup are left alone, for callers that
+		 * load many chunks and refresh them once at the end.
+		 */
+		Report load(Table table, Reader csv, boolean refresh) throws SQLException, IOException {
+			Report report = new Report();
+			long start = System.currentTimeMillis();
+			BufferedReader reader = new BufferedReader(csv);
+			List<Object[]> chunk = new ArrayList<Object[]>(CHUNK_SIZE);
+			List<Long> lines = new ArrayList<Long>(CHUNK_SIZE);
+
+			PooledConnection conn = esql._pool.borrow();
+			try {
+				Object copyApi = copyApi(conn.connection);
+				conn.connection.setAutoCommit(false);
+
+				String line;
+				long lineNo = 0;
+				while ((line = reader.readLine()) != null) {
+					++lineNo;
+					if (line.trim().isEmpty()) continue;
+					List<String> fields = parseCsvLine(line);
+					if (lineNo == 1 && isHeader(table, fields)) continue;
+
+					Object[] row;
+					try {
+						row = validate(table, fields);
+					}catch (IllegalArgumentException e){
+						++report.rejected;
+						if (report.rejects.size() < MAX_REPORTED_REJECTS)
+							report.rejects.add("line " + lineNo + ": " + e.getMessage());
+						continue;
+					}
+					chunk.add(row);
+					lines.add(lineNo);
+					if (chunk.size() == CHUNK_SIZE) {
+						report.accepted += write(conn, copyApi, table, chunk, lines, report);
+						chunk.clear();
+						lines.clear();
+					}
+				}
+				if (!chunk.isEmpty())
+					report.accepted += write(conn, copyApi, table, chunk, lines, report);
+			}catch (SQLException e){
+				conn.connection.rollback();
+				throw e;
+			}finally{
+				try {
+					conn.connection.setAutoCommit(true);
+				}finally{
+					esql._pool.release(conn);
+					//chunks committed before a failure still need the refresh
+					if (refresh && report.accepted > 0)
+						esql.refreshAfterBulkLoad(table);
+				}
+			}
+			report.elapsedMillis = System.currentTimeMillis() - start;
+			return report;
+		}
+
+		private static boolean isHeader(Table table, List<String> fields) {
+			if (fields.size() != table.columns.length) return false;
+			for (int i = 0; i < fields.size(); ++i)
+				if (!fields.get(i).trim().equalsIgnoreCase(table.columns[i])) return false;
+			return true;
+		}
+
+		/**
+		 * Checks one row and converts its fields to the values bound for
+		 * the table's columns.
+		 *
+		 * @throws IllegalArgumentException describing the first bad field
+		 */
+		static Object[] validate(Table table, List<String> f) {
+			if (f.size() != table.columns.length)
+				throw new IllegalArgumentException("expected " + table.columns.length +
+					" fields but found " + f.size());
+			switch (table) {
+				case CUSTOMER:
+					requireName(f.get(1), "First name");
+					requireName(f.get(2), "Last name");
+					if (!isValidPhone(f.get(3)))
+						throw new IllegalArgumentException("Phone number must be in the format (xxx)xxx-xxxx!");
+					return new Object[] {requireInt(f.get(0), "id"), f.get(1), f.get(2), f.get(3), f.get(4)};
+				case MECHANIC:
+					requireName(f.get(1), "First name");
+					requireName(f.get(2), "Last name");
+					int experience = requireInt(f.get(3), "Years of experience");
+					if (experience < 0) throw new IllegalArgumentException("Years of experience can't be negative!");
+					return new Object[] {requireInt(f.get(0), "id"), f.get(1), f.get(2), experience};
+				case CAR:
+					requireVin(f.get(0));
+					requireName(f.get(1), "Vehicle's make");
+					if (!isValidYear(f.get(3)))
+						throw new IllegalArgumentException("Year must be in the format YYYY and not after " + LATEST_CAR_YEAR + "!");
+					return new Object[] {f.get(0), f.get(1), f.get(2), Integer.parseInt(f.get(3).trim())};
+				case OWNS:
+					requireVin(f.get(2));
+					return new Object[] {requireInt(f.get(0), "ownership_id"), requireInt(f.get(1), "customer_id"), f.get(2)};
+				case SERVICE_REQUEST:
+					requireVin(f.get(2));
+					requireDate(f.get(3));
+					int odometer = requireInt(f.get(4), "Mileage");
+					if (odometer <= 0) throw new IllegalArgumentException("Mileage must be higher than 0!");
+					return new Object[] {requireInt(f.get(0), "rid"), requireInt(f.get(1), "customer_id"),
+						f.get(2), f.get(3), odometer, f.get(5)};
+				default:
+					requireDate(f.get(3));
+					int bill = requireInt(f.get(5), "Bill");
+					if (bill < 0) throw new IllegalArgumentException("Bill must be greater than 0!");
+					return new Object[] {requireInt(f.get(0), "wid"), requireInt(f.get(1), "rid"),
+						requireInt(f.get(2), "mid"), f.get(3), f.get(4), bill};
+			}
+		}
+
+		private static void requireName(String value, String what) {
+			if (!isValidName(value)) throw new IllegalArgumentException(what + " can't contain numbers!");
+		}
+
+		private static void requireVin(String value) {
+			if (!isValidVin(value)) throw new IllegalArgumentException("Incorrect VIN " + value);
+		}
+
+		private static void requireDate(String value) {
+			if (!isValidDate(value)) throw new IllegalArgumentException("Invalid date " + value);
+		}
+
+		private static int requireInt(String value, String what) {
+			try {
+				return Integer.parseInt(value.trim());
+			}catch (NumberFormatException e){
+				throw new IllegalArgumentException(what + " must be a valid number!");
+			}
+		}
+
+		/**
+		 * Sends one chunk and commits it.  When the DBMS refuses the chunk
+		 * (a duplicate key, a missing customer, ...) it is sent again row by
+		 * row, and the refused rows are reported like invalid ones.
+		 *
+		 * @return the number of rows written
+		 */
+		private int write(PooledConnection conn, Object copyApi, Table table, List<Object[]> rows,
+				List<Long> lines, Report report) throws SQLException {
+			try {
+				writeChunk(conn, copyApi, table, rows);
+				conn.connection.commit();
+				return rows.size();
+			}catch (SQLException e){
+				conn.connection.rollback();
+			}
+			//a savepoint per row, so one refused row does not undo the others
+			PreparedStatement stmt = conn.statements.prepare(insertSql(table));
+			stmt.clearBatch();
+			int written = 0;
+			for (int r = 0; r < rows.size(); ++r) {
+				Object[] row = rows.get(r);
+				Savepoint savepoint = conn.connection.setSavepoint();
+				try {
+					for (int i = 0; i < row.length; ++i)
+						stmt.setObject(i + 1, row[i]);
+					stmt.executeUpdate();
+					conn.connection.releaseSavepoint(savepoint);
+					++written;
+				}catch (SQLException e){
+					conn.connection.rollback(savepoint);
+					++report.rejected;
+					if (report.rejects.size() < MAX_REPORTED_REJECTS)
+						report.rejects.add("line " + lines.get(r) + ": " + e.getMessage());
+				}
+			}
+			conn.connection.commit();
+			return written;
+		}
+
+		private static String insertSql(Table table) {
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < table.columns.length; ++i) {
+				if (i > 0) values.append(", ");
+				values.append(table.columns[i].equals("date") ? "CAST(? AS DATE)" : "?");
+			}
+			return "INSERT INTO " + table.name + "(" + String.join(", ", table.columns) + ") VALUES (" + values + ")";
+		}
+
+		private void writeChunk(PooledConnection conn, Object copyApi, Table table, List<Object[]> rows) throws SQLException {
+			String columns = String.join(", ", table.columns);
+			if (copyApi != null) {
+				StringBuilder data = new StringBuilder();
+				for (Object[] row : rows) {
+					for (int i = 0; i < row.length; ++i) {
+						if (i > 0) data.append(',');
+						data.append('"').append(String.valueOf(row[i]).replace("\"", "\"\"")).append('"');
+					}
+					data.append('\n');
+				}
+				copyIn(copyApi, "COPY " + table.name + "(" + columns + ") FROM STDIN WITH (FORMAT csv)",
+					new StringReader(data.toString()));
+			}else{
+				PreparedStatement stmt = conn.statements.prepare(insertSql(table));
+				for (Object[] row : rows) {
+					for (int i = 0; i < row.length; ++i)
+						stmt.setObject(i + 1, row[i]);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+		}
+
+		/**
+		 * Returns the driver's CopyManager when the connection is a
+		 * Postgres connection that supports COPY, or null.
+		 */
+		private static Object copyApi(Connection connection) {
+			try {
+				Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+				if (!connection.isWrapperFor(pgConnection)) return null;
+				return pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+			}catch (Exception e){
+				return null;
+			}
+		}
+
+		private static void copyIn(Object copyApi, String sql, Reader data) throws SQLException {
+			try {
+				copyApi.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyApi, sql, data);
+			}catch (InvocationTargetException e){
+				if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+				throw new SQLException("COPY failed: " + e.getCause(), e.getCause());
+			}catch (ReflectiveOperationException e){
+				throw new SQLException("COPY is not available: " + e.getMessage(), e);
+			}
+		}
+
+		/**
+		 * Splits one CSV line.  Fields may be wrapped in double quotes, with
+		 * "" standing for a quote inside a quoted field.
+		 */
+		static List<String> parseCsvLine(String line) {
+			List<String> fields = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			for (int i = 0; i < line.length(); ++i) {
+				char c = line.charAt(i);
+				if (quoted) {
+					if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						field.append('"');
+						++i;
+					}else if (c == '"') {
+						quoted = false;
+					}else{
+						field.append(c);
+					}
+				}else if (c == '"') {
+					quoted = true;
+				}else if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				}else{
+					field.append(c);
+				}
+			}
+			fields.add(field.toString());
+			return fields;
+		}
+	}
+
+	/**
+	 * Fills the shop tables with synthetic data shaped like a real shop:
+	 * the number of cars per customer and of service requests per car
+	 * follow Zipf distributions (most customers own one car, a few own
+	 * fleets), a share of the requests is closed, and bills follow a
+	 * log-normal distribution.
+	 *
+	 * Customers are generated in chunks of CHUNK_SIZE, each with its own
+	 * Random seeded from the configured seed and the chunk number, and the
+	 * chunks are written in parallel through the bulk loader.  Row ids are
+	 * laid out from per-chunk counts computed up front, so the same seed
+	 * on the same starting database gives the same rows whatever the
+	 * thread count.
+	 */
+	public static class DataGenerator {
+		//customers per chunk; a chunk is the unit of work of one thread
+		static final int CHUNK_SIZE = 1000;
+
+		/**
+		 * Target row counts and distribution settings.
+		 */
+		public static class Config {
+			public long seed = 166;
+			public int threads = 4;
+			public int customers = 10000;
+			public int mechanics = 100;
+			//Zipf exponent and upper bound of cars per customer
+			public double carsSkew = 2.0;
+			public int maxCarsPerCustomer = 50;
+			//Zipf exponent and upper bound of service requests per car (0 allowed)
+			public double servicesSkew = 1.5;
+			public int maxServicesPerCar = 30;
+			//share of service requests that get closed
+			public double closedFraction = 0.8;
+			//log-normal bill distribution
+			public double billMedian = 120;
+			public double billSigma = 0.9;
+
+			/**
+			 * Applies a key=value setting, e.g. customers=100000.
+			 */
+			public void set(String setting) {
+				int eq = setting.indexOf('=');
+				if (eq < 0) throw new IllegalArgumentException("Expected key=value but got " + setting);
+				String key = setting.substring(0, eq).trim();
+				String value = setting.substring(eq + 1).trim();
+				switch (key) {
+					case "seed": seed = Long.parseLong(value); break;
+					case "threads": threads = Integer.parseInt(value); break;
+					case "customers": customers = Integer.parseInt(value); break;
+					case "mechanics": mechanics = Integer.parseInt(value); break;
+					case "carsSkew": carsSkew = Double.parseDouble(value); break;
+					case "maxCarsPerCustomer": maxCarsPerCustomer = Integer.parseInt(value); break;
+					case "servicesSkew": servicesSkew = Double.parseDouble(value); break;
+					case "maxServicesPerCar": maxServicesPerCar = Integer.parseInt(value); break;
+					case "closedFraction": closedFraction = Double.parseDouble(value); break;
+					case "billMedian": billMedian = Double.parseDouble(value); break;
+					case "billSigma": billSigma = Double.parseDouble(value); break;
+					default: throw new IllegalArgumentException("Unknown setting " + key);
+				}
+			}
+		}
+
+		/**
+		 * What was generated.  Customer ids are firstCustomer ..
+		 * firstCustomer + customers - 1 and every customer owns at least
+		 * vin(id, 0); mechanics are numbered the same way.
+		 */
+		public static class Report {
+			public int firstCustomer;
+			public int customers;
+			public int firstMechanic;
+			public int mechanics;
+			public long cars = 0;
+			public long serviceRequests = 0;
+			public long closedRequests = 0;
+			public long elapsedMillis = 0;
+
+			public long rows() {
+				return customers + mechanics + 2 * cars + serviceRequests + closedRequests;
+			}
+
+			public String toString() {
+				return String.format("customers: %d, mechanics: %d, cars: %d, service requests: %d, " +
+					"closed requests: %d, elapsed: %.1f s, throughput: %.0f rows/s",
+					customers, mechanics, cars, serviceRequests, closedRequests, elapsedMillis / 1000.0,
+					elapsedMillis == 0 ? rows() : rows() * 1000.0 / elapsedMillis);
+			}
+		}
+
+		/**
+		 * Samples 1..n (or 0..n-1 with offset 0) with P(k) ~ 1/k^s.
+		 */
+		static class Zipf {
+			private final double[] cdf;
+			private final int offset;
+
+			Zipf(int n, double s, int offset) {
+				cdf = new double[n];
+				double sum = 0;
+				for (int k = 1; k <= n; ++k) {
+					sum += 1 / Math.pow(k, s);
+					cdf[k - 1] = sum;
+				}
+				for (int k = 0; k < n; ++k) cdf[k] /= sum;
+				this.offset = offset;
+			}
+
+			int sample(Random random) {
+				int i = Arrays.binarySearch(cdf, random.nextDouble());
+				if (i < 0) i = -i - 1;
+				return Math.min(i, cdf.length - 1) + offset;
+			}
+		}
+
+		//row counts of one chunk, known before any id is handed out
+		private static class ChunkPlan {
+			int cars = 0;
+			int serviceRequests = 0;
+			int closedRequests = 0;
+			int firstOwnership;
+			int firstRid;
+			int firstWid;
+		}
+
+		private final MechanicShop esql;
+		private final Config config;
+		private final Zipf carsPerCustomer;
+		private final Zipf servicesPerCar;
+
+		public DataGenerator(MechanicShop esql, Config config) {
+			this.esql = esql;
+			this.config = config;
+			this.carsPerCustomer = new Zipf(config.maxCarsPerCustomer, config.carsSkew, 1);
+			this.servicesPerCar = new Zipf(config.maxServicesPerCar + 1, config.servicesSkew, 0);
+		}
+
+		/**
+		 * The VIN of a generated customer's n-th car: 'G', the customer id
+		 * and the car number in base 36, padded to 16 characters.
+		 */
+		public static String vin(int customerId, int car) {
+			return "G" + pad(Integer.toString(customerId, 36), 10) + pad(Integer.toString(car, 36), 5);
+		}
+
+		private static String pad(String value, int width) {
+			StringBuilder padded = new StringBuilder();
+			for (int i = value.length(); i < width; ++i) padded.append('0');
+			return padded.append(value).toString().toUpperCase();
+		}
+
+		/**
+		 * Spells n with the letters a-z, since the bulk loader (like AddCar)
+		 * rejects makes with digits: 0 is "a", 25 "z", 26 "ba".
+		 */
+		static String letters(int n) {
+			StringBuilder spelled = new StringBuilder();
+			do {
+				spelled.append((char) ('a' + n % 26));
+				n /= 26;
+			} while (n > 0);
+			return spelled.reverse().toString();
+		}
+
+		public Report generate() throws Exception {
+			long start = System.currentTimeMillis();
+			final Report report = new Report();
+			report.customers = config.customers;
+			report.mechanics = config.mechanics;
+			//ids come from the key sequences, so clients holding a block of ids keep them
+			report.firstCustomer = KeyAllocator.reserve(esql, KeyAllocator.Key.CUSTOMER, config.customers);
+			report.firstMechanic = KeyAllocator.reserve(esql, KeyAllocator.Key.MECHANIC, config.mechanics);
+			//nothing is written if the generated rows would not load
+			check(report);
+
+			//mechanics first, closed requests refer to them
+			StringBuilder csv = new StringBuilder();
+			Random random = new Random(config.seed);
+			for (int i = 0; i < config.mechanics; ++i)
+				csv.append(report.firstMechanic + i).append(",Mech,Anic,").append(random.nextInt(40)).append('\n');
+			load(BulkLoader.Table.MECHANIC, csv);
+
+			//counts every chunk so ids can be laid out deterministically
+			final int chunks = (config.customers + CHUNK_SIZE - 1) / CHUNK_SIZE;
+			final ChunkPlan[] plans = new ChunkPlan[chunks];
+			for (int c = 0; c < chunks; ++c) {
+				plans[c] = new ChunkPlan();
+				generateChunk(c, report, plans[c], null);
+				report.cars += plans[c].cars;
+				report.serviceRequests += plans[c].serviceRequests;
+				report.closedRequests += plans[c].closedRequests;
+			}
+			int ownership = KeyAllocator.reserve(esql, KeyAllocator.Key.OWNS, Math.toIntExact(report.cars));
+			int rid = KeyAllocator.reserve(esql, KeyAllocator.Key.SERVICE_REQUEST, Math.toIntExact(report.serviceRequests));
+			int wid = KeyAllocator.reserve(esql, KeyAllocator.Key.CLOSED_REQUEST, Math.toIntExact(report.closedRequests));
+			for (int c = 0; c < chunks; ++c) {
+				plans[c].firstOwnership = ownership;
+				plans[c].firstRid = rid;
+				plans[c].firstWid = wid;
+				ownership += plans[c].cars;
+				rid += plans[c].serviceRequests;
+				wid += plans[c].closedRequests;
+			}
+
+			ExecutorService workers = Executors.newFixedThreadPool(config.threads);
+			try {
+				List<Future<Void>> done = new ArrayList<Future<Void>>();
+				for (int c = 0; c < chunks; ++c) {
+					final int chunk = c;
+					done.add(workers.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							StringBuilder[] csv = newCsv();
+							generateChunk(chunk, report, plans[chunk], csv);
+							load(BulkLoader.Table.CUSTOMER, csv[0]);
+							load(BulkLoader.Table.CAR, csv[1]);
+							load(BulkLoader.Table.OWNS, csv[2]);
+							load(BulkLoader.Table.SERVICE_REQUEST, csv[3]);
+							load(BulkLoader.Table.CLOSED_REQUEST, csv[4]);
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> f : done) {
+					try {
+						f.get();
+					}catch (ExecutionException e){
+						throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+				}
+			}finally{
+				workers.shutdown();
+			}
+
+			for (BulkLoader.Table table : BulkLoader.Table.values())
+				esql.refreshAfterBulkLoad(table);
+			report.elapsedMillis = System.currentTimeMillis() - start;
+			return report;
+		}
+
+		/**
+		 * Generates one chunk of customers with their cars and requests.
+		 * With csv == null it only fills in the chunk's row counts.
+		 */
+		private void generateChunk(int chunk, Report report, ChunkPlan plan, StringBuilder[] csv) {
+			Random random = new Random(config.seed * 1000003 + chunk);
+			int first = chunk * CHUNK_SIZE;
+			int last = Math.min(config.customers, first + CHUNK_SIZE);
+			int cars = 0, requests = 0, closed = 0;
+			for (int i = first; i < last; ++i) {
+				int customer = report.firstCustomer + i;
+				String phone = String.format("(%03d)%03d-%04d", random.nextInt(1000), random.nextInt(1000), random.nextInt(10000));
+				if (csv != null)
+					csv[0].append(customer).append(",Cust,Omer,").append(phone)
+						.append(',').append(customer).append(" Main St\n");
+
+				int owned = carsPerCustomer.sample(random);
+				for (int car = 0; car < owned; ++car) {
+					String vin = vin(customer, car);
+					int year = 1970 + random.nextInt(LATEST_CAR_YEAR - 1969);
+					int make = random.nextInt(40);
+					int model = random.nextInt(400);
+					if (csv != null) {
+						csv[1].append(vin).append(",Make").append(letters(make)).append(",Model")
+							.append(letters(model)).append(',').append(year).append('\n');
+						csv[2].append(plan.firstOwnership + cars).append(',').append(customer).append(',')
+							.append(vin).append('\n');
+					}
+					++cars;
+
+					int services = servicesPerCar.sample(random);
+					int odometer = 1000 + random.nextInt(20000);
+					for (int s = 0; s < services; ++s) {
+						odometer += random.nextInt(15000);
+						int month = 1 + random.nextInt(12);
+						int day = 1 + random.nextInt(27);
+						int yearOpened = Math.max(year, 2000) + random.nextInt(LATEST_CAR_YEAR - Math.max(year, 2000) + 1);
+						boolean close = random.nextDouble() < config.closedFraction;
+						int bill = (int) Math.round(config.billMedian * Math.exp(config.billSigma * random.nextGaussian()));
+						int mechanic = report.firstMechanic + random.nextInt(Math.max(1, config.mechanics));
+						if (csv != null) {
+							int rid = plan.firstRid + requests;
+							csv[3].append(rid).append(',').append(customer).append(',').append(vin).append(',')
+								.append(month).append('/').append(day).append('/').append(yearOpened).append(',')
+								.append(odometer).append(",noise\n");
+							if (close)
+								csv[4].append(plan.firstWid + closed).append(',').append(rid).append(',')
+									.append(mechanic).append(',').append(month).append('/').append(day + 1)
+									.append('/').append(yearOpened).append(",fixed,").append(bill).append('\n');
+						}
+						++requests;
+						if (close) ++closed;
+					}
+				}
+			}
+			plan.cars = cars;
+			plan.serviceRequests = requests;
+			plan.closedRequests = closed;
+		}
+
+		private static StringBuilder[] newCsv() {
+			return new StringBuilder[] {new StringBuilder(), new StringBuilder(), new StringBuilder(),
+				new StringBuilder(), new StringBuilder()};
+		}
+
+		/**
+		 * Runs the first chunk's rows through the bulk loader's checks
+		 * without writing them, so that a generator that produces rows the
+		 * loader rejects fails before any chunk is committed.
+		 */
+		void check(Report report) {
+			StringBuilder[] csv = newCsv();
+			generateChunk(0, report, new ChunkPlan(), csv);
+			BulkLoader.Table[] tables = {BulkLoader.Table.CUSTOMER, BulkLoader.Table.CAR, BulkLoader.Table.OWNS,
+				BulkLoader.Table.SERVICE_REQUEST, BulkLoader.Table.CLOSED_REQUEST};
+			for (int t = 0; t < tables.length; ++t) {
+				for (String line : csv[t].toString().split("\n")) {
+					if (line.isEmpty()) continue;
+					try {
+						BulkLoader.validate(tables[t], BulkLoader.parseCsvLine(line));
+					}catch (IllegalArgumentException e){
+						throw new IllegalStateException("Generated " + tables[t].name + " row \"" + line +
+							"\" would be rejected: " + e.getMessage());
+					}
+				}
+			}
+		}
+
+		private void load(BulkLoader.Table table, StringBuilder csv) throws Exception {
+			BulkLoader.Report loaded = new BulkLoader(esql).load(table, new StringReader(csv.toString()), false);
+			csv.setLength(0);
+			if (loaded.rejected > 0)
+				throw new IllegalStateException("Generated " + table.name + " rows were rejected: " + loaded.rejects);
+		}
+	}
+
+	/**
+	 * Measures every shop operation against the connected database: the
+	 * five write paths (AddCustomer, AddMechanic, AddCar with its Owns row,
+	 * InsertServiceRequest, CloseServiceRequest) and the five reports.
+	 * For each data size the database is first topped up with generated
+	 * rows, then every operation is run from each thread count and its
+	 * throughput and latency percentiles are printed.
+	 *
+	 * The generated rows stay in the database, so point it at a scratch
+	 * database.  Thread counts above mechanicshop.pool.maxSize measure
+	 * waiting for the pool as well.
+	 */
+	public static class Benchmark {
+		//calls per thread for each measurement
+		static final int WRITE_OPS = 200;
+		static final int REPORT_OPS = 10;
+		//untimed calls per thread before each measurement
+		static final int WARMUP_OPS = 5;
+		//k used for ListKCarsWithTheMostServices
+		static final int TOP_K = 10;
+
+		interface Operation {
+			void run(int call) throws Exception;
+		}
+
+		private final MechanicShop esql;
+		private final PrintStream out;
+		//VINs are unique per run: 'B' + run tag + counter
+		private final String runTag = String.format("%8s", Long.toString(System.currentTimeMillis() % 2821109907456L, 36)).replace(' ', '0');
+		private final AtomicInteger vinCounter = new AtomicInteger();
+		//rows generated so far, picked at random by the operations
+		private final List<Integer> customers = new ArrayList<Integer>();
+		private final List<Integer> mechanics = new ArrayList<Integer>();
+		private final List<String> vins = new ArrayList<String>();
+
+		public Benchmark(MechanicShop esql, PrintStream out) {
+			this.esql = esql;
+			this.out = out;
+		}
+
+		public void run(int[] sizes, int[] threadCounts) throws Exception {
+			out.println(String.format("%-48s %9s %7s %10s %9s %9s %9s %9s",
+				"operation", "customers", "threads", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+			for (int size : sizes) {
+				seed(size);
+				for (int threads : threadCounts) {
+					for (Map.Entry<String, Operation> op : operations(threads).entrySet()) {
+						int calls = op.getKey().startsWith("List") ? REPORT_OPS : WRITE_OPS;
+						report(op.getKey(), size, threads, measure(threads, calls, op.getValue()));
+					}
+				}
+			}
+		}
+
+		/**
+		 * The operations in menu order.  CloseServiceRequest needs open
+		 * requests, which are created (untimed) before it is measured.
+		 */
+		private Map<String, Operation> operations(final int threads) throws Exception {
+			Map<String, Operation> ops = new LinkedHashMap<String, Operation>();
+			ops.put("AddCustomer", new Operation() {
+				public void run(int call) throws Exception {
+					esql.addCustomer("Bench", "Customer", "(555)000-0000", "1 Bench St");
+				}
+			});
+			ops.put("AddMechanic", new Operation() {
+				public void run(int call) throws Exception {
+					esql.addMechanic("Bench", "Mechanic", 5);
+				}
+			});
+			ops.put("AddCar", new Operation() {
+				public void run(int call) throws Exception {
+					String vin = nextVin();
+					esql.addCar(vin, "Bench", "Model", 2000);
+					esql.addOwnership(pick(customers), vin);
+				}
+			});
+			ops.put("InsertServiceRequest", new Operation() {
+				public void run(int call) throws Exception {
+					esql.insertServiceRequest(pick(customers), pick(vins), "6/1/2020", 1000, "bench");
+				}
+			});
+			ops.put("InsertServiceRequest (intake)", new Operation() {
+				public void run(int call) throws Exception {
+					esql.submitServiceRequest(pick(customers), pick(vins), "6/1/2020", 1000, "bench").get();
+				}
+			});
+			final int[] open = new int[threads * (WARMUP_OPS + WRITE_OPS)];
+			ops.put("CloseServiceRequest", new Operation() {
+				public void run(int call) throws Exception {
+					if (call == 0) {
+						//first call of the measurement opens the requests to close
+						for (int i = 0; i < open.length; ++i)
+							open[i] = esql.insertServiceRequest(pick(customers), pick(vins), "6/1/2020", 1000, "bench");
+						return;
+					}
+					esql.closeServiceRequest(open[call - 1], pick(mechanics), "7/1/2020", "bench", 50);
+				}
+			});
+			ops.put("ListCustomersWithBillLessThan100", reportQuery(BILL_LESS_THAN, BILL_THRESHOLD));
+			ops.put("ListCustomersWithMoreThan20Cars", reportQuery(MORE_THAN_N_CARS, FLEET_THRESHOLD));
+			ops.put("ListCarsBefore1995With50000Milles", reportQuery(CARS_BEFORE_YEAR_UNDER_MILES, MILES_THRESHOLD, YEAR_THRESHOLD));
+			ops.put("ListKCarsWithTheMostServices", new Operation() {
+				public void run(int call) throws Exception {
+					esql.topKCars(TOP_K);
+				}
+			});
+			ops.put("ListCustomersInDescendingOrderOfTheirTotalBill", reportQuery(CUSTOMERS_BY_TOTAL_BILL));
+			return ops;
+		}
+
+		//reads every page of the report
+		private Operation reportQuery(final KeysetReport report, final Object... params) {
+			return new Operation() {
+				public void run(int call) throws Exception {
+					String token = null;
+					do {
+						token = esql.reportPage(report, REPORT_PAGE_SIZE, token, params).next;
+					} while (token != null);
+				}
+			};
+		}
+
+		/**
+		 * Runs `calls` timed calls (after WARMUP_OPS untimed ones) from each
+		 * of `threads` threads and returns every call's latency in ns,
+		 * followed by the wall clock time of the timed part.
+		 */
+		private long[] measure(int threads, final int calls, final Operation op) throws Exception {
+			//call 0 is reserved for setup, see CloseServiceRequest
+			op.run(0);
+			final long[] latencies = new long[threads * calls + 1];
+			final AtomicInteger nextCall = new AtomicInteger(1);
+			final CyclicBarrier start = new CyclicBarrier(threads + 1);
+			final CyclicBarrier done = new CyclicBarrier(threads + 1);
+			final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+			for (int t = 0; t < threads; ++t) {
+				final int slot = t * calls;
+				Thread worker = new Thread("bench-" + t) {
+					public void run() {
+						try {
+							for (int i = 0; i < WARMUP_OPS; ++i) op.run(nextCall.getAndIncrement());
+						}catch (Exception e){
+							errors.add(e);
+						}
+						await(start);
+						try {
+							for (int i = 0; i < calls && errors.isEmpty(); ++i) {
+								long began = System.nanoTime();
+								op.run(nextCall.getAndIncrement());
+								latencies[slot + i] = System.nanoTime() - began;
+							}
+						}catch (Exception e){
+							errors.add(e);
+						}
+						await(done);
+					}
+				};
+				worker.setDaemon(true);
+				worker.start();
+			}
+			start.await();
+			long began = System.nanoTime();
+			done.await();
+			latencies[latencies.length - 1] = System.nanoTime() - began;
+			if (!errors.isEmpty()) throw errors.get(0);
+			return latencies;
+		}
+
+		private static void await(CyclicBarrier barrier) {
+			try {
+				barrier.await();
+			}catch (Exception e){
+				// ignored.
+			}
+		}
+
+		private void report(String name, int size, int threads, long[] latencies) {
+			long wall = latencies[latencies.length - 1];
+			long[] sorted = Arrays.copyOf(latencies, latencies.length - 1);
+			Arrays.sort(sorted);
+			out.println(String.format("%-48s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f",
+				name, size, threads, sorted.length * 1e9 / wall,
+				percentile(sorted, 0.50), percentile(sorted, 0.90),
+				percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6));
+			out.flush();
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			int i = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, i)] / 1e6;
+		}
+
+		/**
+		 * Tops the generated data up to `size` customers with the data
+		 * generator's default shape.
+		 */
+		private void seed(int size) throws Exception {
+			int add = size - customers.size();
+			if (add <= 0) return;
+			DataGenerator.Config config = new DataGenerator.Config();
+			config.seed += customers.size();
+			config.customers = add;
+			config.mechanics = Math.max(10, add / 100);
+			DataGenerator.Report generated = new DataGenerator(esql, config).generate();
+
+			for (int i = 0; i < generated.customers; ++i) {
+				customers.add(generated.firstCustomer + i);
+				vins.add(DataGenerator.vin(generated.firstCustomer + i, 0));
+			}
+			for (int i = 0; i < generated.mechanics; ++i)
+				mechanics.add(generated.firstMechanic + i);
+			out.println("-- seeded " + generated);
+		}
+
+		private String nextVin() {
+			return "B" + runTag + String.format("%7s", Integer.toString(vinCounter.getAndIncrement(), 36)).replace(' ', '0');
+		}
+
+		private <T> T pick(List<T> values) {
+			return values.get(ThreadLocalRandom.current().nextInt(values.size()));
+		}
+	}
+
+	/**
+	 * Runs the five list reports side by side for a manager's daily look.
+	 * A coordinating connection opens a REPEATABLE READ transaction and
+	 * exports its snapshot; each report then runs on its own pooled
+	 * connection (through the async executor) in a transaction that
+	 * imports that snapshot, so all five see the database as of the same
+	 * instant even while intake keeps writing.  Each report is printed as
+	 * soon as it is done, with how long it took.
+	 *
+	 * It needs six pooled connections at once (see mechanicshop.pool.maxSize).
+	 * ListKCarsWithTheMostServices is answered with SQL here rather than by
+	 * the in-process top-K index, which is not tied to a snapshot.
+	 */
+	public static class Dashboard {
+		static final int TOP_K = 10;
+
+		/**
+		 * One report of the dashboard, run on a connection that is already
+		 * in the snapshot; returns what to print.
+		 */
+		interface Section {
+			String run(PooledConnection conn) throws SQLException;
+		}
+
+		private final MechanicShop esql;
+		private final Map<String, Section> sections = new LinkedHashMap<String, Section>();
+
+		public Dashboard(MechanicShop esql) {
+			this.esql = esql;
+			sections.put("ListCustomersWithBillLessThan100", report(BILL_LESS_THAN, BILL_THRESHOLD));
+			sections.put("ListCustomersWithMoreThan20Cars", report(MORE_THAN_N_CARS, FLEET_THRESHOLD));
+			sections.put("ListCarsBefore1995With50000Milles", report(CARS_BEFORE_YEAR_UNDER_MILES, MILES_THRESHOLD, YEAR_THRESHOLD));
+			sections.put("ListKCarsWithTheMostServices", new Section() {
+				public String run(PooledConnection conn) throws SQLException {
+					ColumnarResult cars = Dashboard.this.esql.queryOn(conn, K_CARS_WITH_MOST_SERVICES_QUERY, TOP_K);
+					return ShopServer.tsv(cars, cars.getColumnCount()) + "total row(s): " + cars.getRowCount() + "\n";
+				}
+			});
+			sections.put("ListCustomersInDescendingOrderOfTheirTotalBill", report(CUSTOMERS_BY_TOTAL_BILL));
+		}
+
+		//every page of a list report
+		private Section report(final KeysetReport report, final Object... params) {
+			return new Section() {
+				public String run(PooledConnection conn) throws SQLException {
+					StringBuilder out = new StringBuilder();
+					int rowCount = 0;
+					String token = null;
+					do {
+						ReportPage page = esql.reportPage(conn, report, REPORT_PAGE_SIZE, token, params);
+						String text = ShopServer.tsv(page.rows, page.columns);
+						//the header only once
+						out.append(rowCount == 0 ? text : text.substring(text.indexOf('\n') + 1));
+						rowCount += page.rows.getRowCount();
+						token = page.next;
+					} while (token != null);
+					return out.append("total row(s): ").append(rowCount).append('\n').toString();
+				}
+			};
+		}
+
+		/**
+		 * Runs every report and prints each one to `out` as it finishes.
+		 * A report that fails prints its error; the others still run.
+		 */
+		public void run(final PrintStream out) throws SQLException {
+			final long start = System.nanoTime();
+			PooledConnection coordinator = esql._pool.borrow();
+			int isolation = Connection.TRANSACTION_READ_COMMITTED;
+			try {
+				isolation = coordinator.connection.getTransactionIsolation();
+				coordinator.connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				coordinator.connection.setAutoCommit(false);
+				ResultSet rs = coordinator.statements.prepare("SELECT pg_export_snapshot()").executeQuery();
+				rs.next();
+				final String snapshot = rs.getString(1);
+				rs.close();
+
+				List<CompletableFuture<Void>> printed = new ArrayList<CompletableFuture<Void>>();
+				for (final Map.Entry<String, Section> section : sections.entrySet()) {
+					CompletableFuture<String> text = esql.async(new Callable<String>() {
+						public String call() throws SQLException {
+							long began = System.nanoTime();
+							String body = inSnapshot(snapshot, section.getValue());
+							return String.format("== %s: %.1f ms, done at %.1f ms ==%n%s", section.getKey(),
+								(System.nanoTime() - began) / 1e6, (System.nanoTime() - start) / 1e6, body);
+						}
+					});
+					printed.add(text.handle(new BiFunction<String, Throwable, Void>() {
+						public Void apply(String body, Throwable error) {
+							synchronized (out) {
+								if (error != null)
+									out.println("== " + section.getKey() + " failed: " +
+										(error.getCause() != null ? error.getCause().getMessage() : error.getMessage()) + " ==");
+								else
+									out.println(body);
+								out.flush();
+							}
+							return null;
+						}
+					}));
+				}
+				//the snapshot must stay exported until every report has imported it
+				for (CompletableFuture<Void> done : printed)
+					done.join();
+				coordinator.connection.commit();
+				out.printf("dashboard done in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+			}catch (SQLException e){
+				coordinator.connection.rollback();
+				throw e;
+			}finally{
+				try {
+					coordinator.connection.setAutoCommit(true);
+					coordinator.connection.setTransactionIsolation(isolation);
+				}finally{
+					esql._pool.release(coordinator);
+				}
+			}
+		}
+
+		//runs a section on its own connection, in a transaction on the exported snapshot
+		private String inSnapshot(String snapshot, Section section) throws SQLException {
+			//snapshot ids look like 00000003-0000001B-1; nothing else goes into the SQL text
+			if (!snapshot.matches("[0-9A-Fa-f-]+"))
+				throw new SQLException("Unexpected snapshot id " + snapshot);
+			PooledConnection conn = esql._pool.borrow();
+			int isolation = Connection.TRANSACTION_READ_COMMITTED;
+			try {
+				isolation = conn.connection.getTransactionIsolation();
+				conn.connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				conn.connection.setAutoCommit(false);
+				//a one-off text, so not worth a slot in the statement cache
+				Statement stmt = conn.connection.createStatement();
+				try {
+					stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+				}finally{
+					stmt.close();
+				}
+				String text = section.run(conn);
+				conn.connection.commit();
+				return text;
+			}catch (SQLException e){
+				conn.connection.rollback();
+				throw e;
+			}finally{
+				try {
+					conn.connection.setAutoCommit(true);
+					conn.connection.setTransactionIsolation(isolation);
+				}finally{
+					esql._pool.release(conn);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves the shop operations over HTTP on the loopback interface, so
+	 * one process can take requests from every front desk and bay of a
+	 * location.  Operations run on a fixed pool of worker threads sharing
+	 * the connection pool; the pool's queue is bounded and a request that
+	 * finds it full is turned away with 503 straight away (backpressure)
+	 * instead of piling up.  A request that takes longer than the timeout
+	 * gets 504 and its worker is interrupted.
+	 *
+	 * Parameters come from the query string or a form-encoded body and
+	 * results are tab separated, header first, like the menu prints them:
+	 *
+	 *   POST /customers                fname, lname, phone, address
+	 *   POST /mechanics                fname, lname, experience
+	 *   POST /cars                     vin, make, model, year, owner
+	 *   POST /service-requests         customer, vin, date, odometer, complain
+	 *   POST /service-requests/close   rid, mid, date, comment, bill
+	 *   GET  /customers/search         lname, fname, limit
+	 *   GET  /reports/top-cars         k
+	 *   GET  /reports/<report name>    the report's parameters, pageSize, token
+	 *   GET  /stats
+	 *
+	 * Paged reports return the next page's token in an X-Next-Page header.
+	 */
+	public static class ShopServer {
+		static final int DEFAULT_THREADS = 8;
+		static final int DEFAULT_QUEUE_SIZE = 32;
+		static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000L;
+
+		/**
+		 * What an operation sends back.
+		 */
+		static class Response {
+			final int status;
+			final String body;
+			String next = null;
+
+			Response(int status, String body) {
+				this.status = status;
+				this.body = body;
+			}
+		}
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+		/**
+		 * One operation behind a route.
+		 */
+		interface Operation {
+			Response run(Map<String, String> params) throws Exception;
+		}
 
-		// close the instruction
-	    stmt.close ();
-	}//end executeUpdate
+		private final MechanicShop esql;
+		private final HttpServer http;
+		private final ThreadPoolExecutor workers;
+		private final ExecutorService dispatchers;
+		//answers 504 for requests that are not done in time
+		private final Timer deadlines = new Timer("server-deadlines", true);
+		private final long timeoutMillis;
+		private final Map<String, Operation> routes = new HashMap<String, Operation>();
+		private final CountDownLatch stopped = new CountDownLatch(1);
+		private final AtomicLong served = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong timedOut = new AtomicLong();
 
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		public ShopServer(MechanicShop esql, int port, int threads, int queueSize, long timeoutMillis) throws IOException {
+			this.esql = esql;
+			this.timeoutMillis = timeoutMillis;
+			this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+			//dispatchers only read a request and hand it to a worker, they never wait for the result
+			this.dispatchers = Executors.newFixedThreadPool(threads);
+			this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			this.http.setExecutor(dispatchers);
+			addRoutes();
+			this.http.createContext("/", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					dispatch(exchange);
+				}
+			});
+		}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		public void start() {
+			http.start();
+		}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
+		/**
+		 * Stops taking requests, lets running ones finish for up to a
+		 * second, and wakes awaitStop.
 		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+		public void stop() {
+			http.stop(1);
+			workers.shutdown();
+			dispatchers.shutdown();
+			deadlines.cancel();
+			stopped.countDown();
+		}
+
+		public void awaitStop() throws InterruptedException {
+			stopped.await();
+		}
+
+		public int getPort() {
+			return http.getAddress().getPort();
+		}
+
+		/**
+		 * Hands a request to a worker without waiting for it.  The worker,
+		 * a full queue or the deadline answers, whichever comes first.
+		 */
+		private void dispatch(final HttpExchange exchange) {
+			//the deadline counts from here, so time waiting for a worker is included
+			final long arrived = System.nanoTime();
+			final AtomicBoolean answered = new AtomicBoolean();
+			TimerTask deadline = null;
+			try {
+				final String name = exchange.getRequestMethod() + " " + route(exchange.getRequestURI().getPath());
+				final Operation op = routes.get(name);
+				if (op == null) {
+					respond(exchange, answered, new Response(404, "No such operation\n"));
+					return;
+				}
+				final Map<String, String> params = params(exchange);
+				final TimerTask[] done = new TimerTask[1];
+				final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+					public void run() {
+						Metrics.Scope scope = esql.getMetrics().begin("http " + name);
+						boolean failed = true;
+						Response response;
+						try {
+							response = op.run(params);
+							failed = response.status >= 500;
+						}catch (IllegalArgumentException e){
+							response = new Response(400, e.getMessage() + "\n");
+						}catch (Exception e){
+							response = new Response(500, e.getMessage() + "\n");
+						}finally{
+							scope.end(failed);
+						}
+						done[0].cancel();
+						respond(exchange, answered, response);
+					}
+				}, null);
+				deadline = done[0] = new TimerTask() {
+					public void run() {
+						if (answered.get()) return;
+						task.cancel(true);
+						timedOut.incrementAndGet();
+						respond(exchange, answered, new Response(504, "Timed out after " + timeoutMillis + " ms\n"));
+					}
+				};
+				long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrived);
+				deadlines.schedule(deadline, Math.max(0, timeoutMillis - waited));
+				workers.execute(task);
+			}catch (RejectedExecutionException e){
+				deadline.cancel();
+				rejected.incrementAndGet();
+				respond(exchange, answered, new Response(503, "Busy, try again\n"));
+			}catch (Exception e){
+				if (deadline != null)
+					deadline.cancel();
+				respond(exchange, answered, new Response(500, e.getMessage() + "\n"));
+			}
+		}
+
+		//sends the first answer for an exchange; later ones are dropped
+		private void respond(HttpExchange exchange, AtomicBoolean answered, Response response) {
+			if (!answered.compareAndSet(false, true)) return;
+			served.incrementAndGet();
+			try {
+				byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+				if (response.next != null)
+					exchange.getResponseHeaders().set("X-Next-Page", response.next);
+				exchange.sendResponseHeaders(response.status, body.length);
+				exchange.getResponseBody().write(body);
+			}catch (IOException e){
+				//the client went away; nothing to answer
+			}finally{
+				exchange.close();
+			}
+		}
+
+		//paged reports share one route
+		private static String route(String path) {
+			return path.startsWith("/reports/") && !path.equals("/reports/top-cars") ? "/reports/*" : path;
+		}
+
+		private static Map<String, String> params(HttpExchange exchange) throws IOException {
+			Map<String, String> params = new HashMap<String, String>();
+			parseForm(exchange.getRequestURI().getRawQuery(), params);
+			if (exchange.getRequestMethod().equals("POST")) {
+				BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+				StringBuilder form = new StringBuilder();
+				String line;
+				while ((line = body.readLine()) != null)
+					form.append(line);
+				parseForm(form.toString(), params);
+			}
+			String path = exchange.getRequestURI().getPath();
+			if (path.startsWith("/reports/"))
+				params.put("report", path.substring("/reports/".length()));
+			return params;
+		}
+
+		private static void parseForm(String form, Map<String, String> params) {
+			if (form == null || form.isEmpty()) return;
+			for (String pair : form.split("&")) {
+				int eq = pair.indexOf('=');
+				String name = eq < 0 ? pair : pair.substring(0, eq);
+				String value = eq < 0 ? "" : pair.substring(eq + 1);
+				params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+			}
+		}
+
+		private static String require(Map<String, String> params, String name) {
+			String value = params.get(name);
+			if (value == null)
+				throw new IllegalArgumentException("Missing parameter " + name);
+			return value;
+		}
+
+		private static int requireInt(Map<String, String> params, String name) {
+			try {
+				return Integer.parseInt(require(params, name).trim());
+			}catch (NumberFormatException e){
+				throw new IllegalArgumentException("Parameter " + name + " must be a number");
+			}
+		}
+
+		private static String requireName(Map<String, String> params, String name) {
+			String value = require(params, name);
+			if (!isValidName(value))
+				throw new IllegalArgumentException("Parameter " + name + " must not contain numbers");
+			return value;
+		}
+
+		//the first `columns` columns of a result, header first
+		static String tsv(ColumnarResult result, int columns) {
+			StringBuilder out = new StringBuilder();
+			for (int i = 0; i < columns; ++i)
+				out.append(result.getColumnName(i)).append('\t');
+			out.append('\n');
+			for (int row = 0; row < result.getRowCount(); ++row) {
+				for (int i = 0; i < columns; ++i)
+					out.append(result.getString(row, i)).append('\t');
+				out.append('\n');
+			}
+			return out.toString();
+		}
+
+		private void addRoutes() {
+			routes.put("POST /customers", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					String fname = requireName(params, "fname");
+					String lname = requireName(params, "lname");
+					String phone = require(params, "phone");
+					if (!isValidPhone(phone))
+						throw new IllegalArgumentException("Phone number must be in the format (xxx)xxx-xxxx");
+					int id = esql.addCustomer(fname, lname, phone, require(params, "address"));
+					ColumnarResult customer = esql.customerById(id);
+					return new Response(201, tsv(customer, customer.getColumnCount()));
+				}
+			});
+			routes.put("POST /mechanics", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					int id = esql.addMechanic(requireName(params, "fname"), requireName(params, "lname"),
+						requireInt(params, "experience"));
+					ColumnarResult mechanic = esql.mechanicById(id);
+					return new Response(201, tsv(mechanic, mechanic.getColumnCount()));
+				}
+			});
+			routes.put("POST /cars", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					String vin = require(params, "vin");
+					if (!isValidVin(vin))
+						throw new IllegalArgumentException("VIN must have 16 characters");
+					String year = require(params, "year");
+					if (!isValidYear(year))
+						throw new IllegalArgumentException("Year must be YYYY and no later than " + LATEST_CAR_YEAR);
+					final int owner = requireInt(params, "owner");
+					final String newVin = vin;
+					//both lookups at once
+					CompletableFuture<ColumnarResult> customer = esql.async(new Callable<ColumnarResult>() {
+						public ColumnarResult call() throws SQLException {
+							return esql.customerById(owner);
+						}
+					});
+					CompletableFuture<Boolean> existing = esql.async(new Callable<Boolean>() {
+						public Boolean call() throws SQLException {
+							return esql.carExists(newVin);
+						}
+					});
+					if (await(customer).getRowCount() == 0)
+						throw new IllegalArgumentException("No customer " + owner);
+					if (await(existing))
+						return new Response(409, "VIN already exists\n");
+					esql.addCar(vin, requireName(params, "make"), require(params, "model"), Integer.parseInt(year.trim()));
+					esql.addOwnership(owner, vin);
+					ColumnarResult car = esql.carByVin(vin);
+					return new Response(201, tsv(car, car.getColumnCount()));
+				}
+			});
+			routes.put("POST /service-requests", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					int customer = requireInt(params, "customer");
+					String vin = require(params, "vin");
+					String date = require(params, "date");
+					if (!isValidDate(date))
+						throw new IllegalArgumentException("Date must be a valid M/D/YYYY date");
+					int odometer = requireInt(params, "odometer");
+					if (odometer <= 0)
+						throw new IllegalArgumentException("Odometer must be higher than 0");
+					final int customerId = customer;
+					final String carVin = vin;
+					//both lookups at once
+					CompletableFuture<ColumnarResult> found = esql.async(new Callable<ColumnarResult>() {
+						public ColumnarResult call() throws SQLException {
+							return esql.customerById(customerId);
+						}
+					});
+					CompletableFuture<Boolean> owned = esql.async(new Callable<Boolean>() {
+						public Boolean call() throws SQLException {
+							return esql.ownsCar(customerId, carVin);
+						}
+					});
+					if (await(found).getRowCount() == 0)
+						throw new IllegalArgumentException("No customer " + customer);
+					if (!await(owned))
+						throw new IllegalArgumentException("Customer " + customer + " does not own " + vin);
+					int rid = esql.submitServiceRequest(customer, vin, date, odometer, params.get("complain")).get();
+					return new Response(201, "rid\t\n" + rid + "\t\n");
+				}
+			});
+			routes.put("POST /service-requests/close", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					String date = require(params, "date");
+					if (!isValidDate(date))
+						throw new IllegalArgumentException("Date must be a valid M/D/YYYY date");
+					int bill = requireInt(params, "bill");
+					if (bill < 0)
+						throw new IllegalArgumentException("Bill must not be negative");
+					CloseResult result = esql.closeServiceRequest(requireInt(params, "rid"), requireInt(params, "mid"),
+						date, params.get("comment"), bill);
+					switch (result.outcome) {
+						case CLOSED:
+							return new Response(201, String.join("\t", result.columns) + "\t\n" + String.join("\t", result.row) + "\t\n");
+						case NOT_FOUND:
+							return new Response(404, "No such service request\n");
+						default:
+							return new Response(409, result.outcome + "\n");
+					}
+				}
+			});
+			routes.put("GET /customers/search", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					String lname = require(params, "lname");
+					String limit = params.get("limit");
+					int n = limit == null ? NAME_SUGGESTIONS : requireInt(params, "limit");
+					if (n < 1 || n > MAX_NAME_MATCHES)
+						throw new IllegalArgumentException("limit must be between 1 and " + MAX_NAME_MATCHES);
+					StringBuilder out = new StringBuilder("id\tfname\tlname\tscore\t\n");
+					for (NameIndex.Match match : esql.searchCustomers(lname, params.get("fname"), n))
+						out.append(match.id).append('\t').append(match.fname).append('\t').append(match.lname)
+							.append('\t').append(match.score).append("\t\n");
+					return new Response(200, out.toString());
+				}
+			});
+			routes.put("GET /reports/top-cars", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					int k = requireInt(params, "k");
+					if (k < 1)
+						throw new IllegalArgumentException("k must be positive");
+					StringBuilder out = new StringBuilder("make\tmodel\tsreq\t\n");
+					for (TopKServiceIndex.Car car : esql.topKCars(k))
+						out.append(car.make).append('\t').append(car.model).append('\t').append(car.services).append("\t\n");
+					return new Response(200, out.toString());
+				}
+			});
+			routes.put("GET /reports/*", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					KeysetReport report = null;
+					for (KeysetReport candidate : REPORTS)
+						if (candidate.name.equals(params.get("report"))) report = candidate;
+					if (report == null)
+						return new Response(404, "No such report\n");
+					Object[] bounds = new Object[report.parameters.size()];
+					for (int i = 0; i < bounds.length; ++i)
+						bounds[i] = requireInt(params, report.parameters.get(i));
+					int pageSize = params.containsKey("pageSize") ? requireInt(params, "pageSize") : REPORT_PAGE_SIZE;
+					ReportPage page = esql.reportPage(report, pageSize, params.get("token"), bounds);
+					Response response = new Response(200, tsv(page.rows, page.columns));
+					response.next = page.next;
+					return response;
+				}
+			});
+			routes.put("GET /stats", new Operation() {
+				public Response run(Map<String, String> params) throws Exception {
+					return new Response(200, "served\t" + served.get() + "\t\nrejected\t" + rejected.get() +
+						"\t\ntimed out\t" + timedOut.get() + "\t\npool\t" + esql.getPoolStats() +
+						"\t\nstatements\t" + esql.getStatementCacheStats() + "\t\nlookups\t" + esql.getLookupCacheStats() +
+						"\t\nslow queries\t" + esql.getSlowQueryStats() + "\t\nreplicas\t" + esql.getReplicaStats() +
+						"\t\nvins\t" + esql.getVinIndexStats() + "\t\nnames\t" + esql.getNameIndexStats() +
+						"\t\n\n" + esql.getMetrics().getReport());
+				}
+			});
+		}
 	}
-	
+
+	//newest model year AddCar accepts
+	static final int LATEST_CAR_YEAR = 2021;
+
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
-	 * 
-	 * @param query the input query string
-	 * @return the query result as a list of records
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Returns true when a first/last name or make has no digits in it.
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
-	}//end executeQueryAndReturnResult
-	
+	static boolean isValidName(String name) {
+		for (char c : name.toCharArray())
+			if (Character.isDigit(c)) return false;
+		return true;
+	}
+
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Returns true when a phone number is in the format (xxx)xxx-xxxx.
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	static boolean isValidPhone(String phone) {
+		if (phone.length() != 13) return false;
+		for (int i = 0; i < 13; ++i) {
+			char c = phone.charAt(i);
+			switch (i) {
+				case 0: if (c != '(') return false; break;
+				case 4: if (c != ')') return false; break;
+				case 8: if (c != '-') return false; break;
+				default: if (c < '0' || c > '9') return false; break;
+			}
+		}
+		return true;
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Returns true when a VIN has the 16 characters the shop uses.
+	 */
+	static boolean isValidVin(String vin) {
+		return vin.length() == 16;
+	}
 
-		ResultSetMetaData rsmd = rs.getMetaData ();
-      		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
+	/**
+	 * Returns true for a four digit model year that is not in the future.
+	 */
+	static boolean isValidYear(String year) {
+		year = year.trim();
+		if (year.length() != 4) return false;
+		try {
+			return Integer.parseInt(year) <= LATEST_CAR_YEAR;
+		}catch (NumberFormatException e){
+			return false;
+		}
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-
-		/*
-		boolean outputHeader = true;
-                while (rs.next()){
-	 	    if(outputHeader){
-	    	        for(int i = 1; i <= numCol; i++){
-		            System.out.print(rsmd.getColumnName(i) + "\t");
-	            	}
-	    
-  		    	System.out.println();
-	            	outputHeader = false;
-	            }
-	
-                    for (int i=1; i<=numCol; ++i)
-         	    	System.out.print (rs.getString (i) + "\t");
-	
-         	    System.out.println ();
-         	    ++rowCount;
-      		}
-		*/
+	/**
+	 * Returns true when the day exists in the month of a four digit year.
+	 */
+	static boolean isValidDate(int month, int day, int year) {
+		if (year < 1000 || year > 9999 || month < 1 || month > 12 || day < 1) return false;
+		int[] days = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+		boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+		return day <= (month == 2 && leap ? 29 : days[month - 1]);
+	}
 
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Returns true for a valid M/D/YYYY or YYYY-MM-DD date.
+	 */
+	static boolean isValidDate(String date) {
+		String[] parts;
+		date = date.trim();
+		try {
+			if (date.indexOf('/') >= 0) {
+				parts = date.split("/");
+				if (parts.length != 3) return false;
+				return isValidDate(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+			}
+			parts = date.split("-");
+			if (parts.length != 3) return false;
+			return isValidDate(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[0]));
+		}catch (NumberFormatException e){
+			return false;
+		}
 	}
-	
+
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * Method to create the executor for the async operations, with daemon
+	 * threads that exit after a minute idle.
 	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @param threads the most operations run at once
+	 * @return the executor
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	private static ThreadPoolExecutor asyncExecutor (int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor (threads, threads, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable> (), new ThreadFactory () {
+				private final AtomicInteger count = new AtomicInteger ();
+				public Thread newThread (Runnable task) {
+					Thread thread = new Thread (task, "async-" + count.incrementAndGet ());
+					thread.setDaemon (true);
+					return thread;
+				}
+			});
+		executor.allowCoreThreadTimeOut (true);
+		return executor;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the pooled physical connections.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		this._async.shutdown ();
+		if (this._replicas != null){
+			this._replicas.close ();
+		}
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -235,10 +5848,16 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		String mode = args.length > 3 ? args[3] : "menu";
+		if (args.length < 3 || !(mode.equals("menu") && args.length == 3 ||
+				mode.equals("import") && args.length == 6 ||
+				mode.equals("bench") && args.length <= 6 ||
+				mode.equals("server") && args.length <= 5 ||
+				mode.equals("generate"))) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [import <table> <csv file> | bench [<sizes> [<threads>]]" +
+		            " | generate [<setting>=<value> ...] | server [<http port>]]");
 			return;
 		}//end if
 		
@@ -262,6 +5881,23 @@ public class MechanicShop{
 			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
+
+			if (mode.equals("import")) {
+				BulkImport(esql, args[4], args[5]);
+				return;
+			}
+			if (mode.equals("generate")) {
+				GenerateData(esql, Arrays.copyOfRange(args, 4, args.length));
+				return;
+			}
+			if (mode.equals("server")) {
+				RunServer(esql, args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_HTTP_PORT);
+				return;
+			}
+			if (mode.equals("bench")) {
+				RunBenchmark(esql, args.length > 4 ? args[4] : "1000,10000", args.length > 5 ? args[5] : "1,4");
+				return;
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -277,23 +5913,33 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. Dashboard");
+				System.out.println("12. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+				int choice = readChoice();
+				//counted but not timed: the prompts are part of it, the statement timers give the latency
+				Metrics.Scope op = choice >= 1 && choice <= MENU_OPERATIONS.length
+					? esql.getMetrics().beginUntimed("menu " + MENU_OPERATIONS[choice - 1]) : null;
+				try {
+					switch (choice){
+						case 1: AddCustomer(esql); break;
+						case 2: AddMechanic(esql); break;
+						case 3: AddCar(esql); break;
+						case 4: InsertServiceRequest(esql); break;
+						case 5: CloseServiceRequest(esql); break;
+						case 6: ListCustomersWithBillLessThan100(esql); break;
+						case 7: ListCustomersWithMoreThan20Cars(esql); break;
+						case 8: ListCarsBefore1995With50000Milles(esql); break;
+						case 9: ListKCarsWithTheMostServices(esql); break;
+						case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
+						case 11: Dashboard(esql); break;
+						case 12: keepon = false; break;
+					}
+				}finally{
+					if (op != null) op.end(false);
 				}
 			}
 		}catch(Exception e){
@@ -311,6 +5957,13 @@ public class MechanicShop{
 		}
 	}
 
+	//menu options 1-11, as named in the metrics
+	static final String[] MENU_OPERATIONS = {
+		"AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest", "CloseServiceRequest",
+		"ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles",
+		"ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill", "Dashboard"
+	};
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -336,7 +5989,6 @@ public class MechanicShop{
 		char[] str_to_char;
 		Scanner input = new Scanner(System.in);
 		boolean invalid = false;
-		int rowCount = 0;
 		
 		//user input for first name
 		System.out.print("Enter customer's first name: ");
@@ -437,36 +6089,29 @@ public class MechanicShop{
         }	
 
 		if (!invalid) {
-		    rowCount = 0;
+		    boolean exists = false;
 		    try {
-			    query = "SELECT fname FROM Customer WHERE fname = '" + fname + 
-						"' AND lname = '" + lname + "' AND phone = '" + phone + "' AND address = '"
-						+ address + "'";
+			    query = "SELECT 1 FROM Customer WHERE fname = ? AND lname = ? " +
+						"AND phone = ? AND address = ?";
 
-		 		esql.executeQuery(query);
+		 		exists = esql.exists(query, fname, lname, phone, address);
 		    }catch (Exception e){
 		  		System.err.println(e.getMessage());
 		    }
 
 		    //checks if Customer already exists
-		    if (rowCount > 0) {
+		    if (exists) {
 				System.out.println("Customer already exists!");
 				return;
 		    }
 		
 		    //execute query
 		    try {
-                query = "INSERT INTO Customer(id, fname, lname, phone, address) " +
-                        "SELECT MAX(id) + 1,'" + fname + "','" + lname + "','" + phone +
-                        "','" + address + "' FROM Customer";
-
-                esql.executeUpdate(query);
+                int id = esql.addCustomer(fname, lname, phone, address);
 
 				//prints inserted Customer
-				query = "SELECT * FROM Customer WHERE fname = '" + fname +
-	                                "' AND lname = '" + lname + "' AND phone = '" + phone + "' AND address = '"
-	                                + address + "'";
-				esql.executeQueryAndPrintResult(query);
+				query = "SELECT * FROM Customer WHERE id = ?";
+				esql.executeQueryAndPrintResult(query, id);
 		
                 System.out.println("Customer successfully added to database.");
             }catch (Exception e){ System.err.println(e.getMessage()); } 
@@ -480,6 +6125,7 @@ public class MechanicShop{
 	    String query;
 	    int vin_num_limit = 16;
 	    int mechanic_count = 0;
+	    int int_years = 0;
 	    char[] str_to_char;
 	    Scanner scanner = new Scanner(System.in);
 	    boolean valid = false;
@@ -524,7 +6170,7 @@ public class MechanicShop{
 			years_of_exp = scanner.nextLine();	
 
 		try {
-		    int int_years = Integer.parseInt(years_of_exp);
+		    int_years = Integer.parseInt(years_of_exp);
 		}catch(Exception e) {
 		    System.out.println("Years can only contain numbers!");
 		    return;
@@ -537,16 +6183,11 @@ public class MechanicShop{
 
 	    if(valid){
 	     	try {
-	         	query = "INSERT INTO Mechanic(id, fname, lname, experience) " +
-	                 	"SELECT MAX(id) + 1,'" + fname + "','" + lname + "','" + years_of_exp + "' FROM Mechanic";
-
-	         	esql.executeUpdate(query);
+	         	int id = esql.addMechanic(fname, lname, int_years);
 
-			query = "SELECT * FROM Mechanic WHERE " + 
-				"fname = '" + fname + "' AND lname = '" + lname + "' AND experience = '" + 
-				years_of_exp + "'";
+			query = "SELECT * FROM Mechanic WHERE id = ?";
 
-			esql.executeQueryAndPrintResult(query);
+			esql.executeQueryAndPrintResult(query, id);
 
 	         	System.out.println("Mechanic successfully added to database.");
 	     	}catch (Exception e){
@@ -566,8 +6207,7 @@ public class MechanicShop{
         char[] str_to_char;
         Scanner scanner = new Scanner(System.in);
         boolean valid = false;
-	    int rowCount = 0;
-	    int int_year;
+	    int int_year = 0;
 
 
 
@@ -584,15 +6224,12 @@ public class MechanicShop{
 
 	//checks if vin exists already
 	try {
-		    query = "SELECT * FROM Car WHERE " + 
-			        "vin = '" + vin + "'";
-
-		    rowCount = esql.executeQuery(query);
+		    valid = !esql.carExists(vin);
 		}catch (Exception e){
 		    System.err.println(e.getMessage());
 		}
 
-		if (rowCount > 0) {
+		if (!valid) {
 		   System.out.println("Vin # already exists!");
 		   return;
 		}
@@ -644,15 +6281,11 @@ public class MechanicShop{
 
         if(valid) {
 	        try {
-	            query = "INSERT INTO Car(vin, make, model, year) " +
-	                      "VALUES ('" + vin + "','" + make + "','" + model + "','" + year + "')";
-
-	            esql.executeUpdate(query);
+	            esql.addCar(vin, make, model, int_year);
 
-		    query = "SELECT model, vin FROM Car "
-                        + "WHERE vin = '" + vin + "'";
+		    query = "SELECT model, vin FROM Car WHERE vin = ?";
 
-		    esql.executeQueryAndPrintResult(query);
+		    esql.executeQueryAndPrintResult(query, vin);
 
 		    String pick = "";
 		    int cust_id = 0;
@@ -661,10 +6294,7 @@ public class MechanicShop{
 
 		    cust_id = Integer.parseInt(pick);
 
-		    query = "INSERT INTO Owns(ownership_id, customer_id, car_vin) " + 
-			    "SELECT MAX(ownership_id) + 1," + cust_id + ",'" + vin + "' FROM Owns";
-
-		    esql.executeUpdate(query);
+		    esql.addOwnership(cust_id, vin);
 
 	            System.out.println("Car successfully added to database.");
 	        }catch (Exception e){
@@ -719,32 +6349,37 @@ public class MechanicShop{
   }
 
                 try{
-            query = "SELECT * " +
-                   "FROM Customer " +
-                    "WHERE lname = '" + lname + "'";
-            customer_count = esql.executeQuery(query);
-            System.out.println("Total row(s) affected: " + customer_count);
-            if(customer_count == 0){
+            ColumnarResult customers = esql.customersByLname(lname);
+            //no exact match, so offer the closest names instead of asking again
+            List<NameIndex.Match> similar = Collections.emptyList();
+            if(customers.getRowCount() == 0){
+                similar = esql.searchCustomers(lname, null, NAME_SUGGESTIONS);
+            }
+            if(customers.getRowCount() == 0 && similar.isEmpty()){
                 System.out.println("Last name not found in database. Please enter new customer info!");
                 AddCustomer(esql);
 		return;
 }
-        else if(customer_count > 0){
-                System.out.println("Customers with the name: " + lname);
-                customer_count = esql.executeQueryAndPrintResult(query);
+        else {
+                if (customers.getRowCount() > 0) {
+                    System.out.println("Customers with the name: " + lname);
+                    customer_count = printResult(customers);
+                }
+                else {
+                    System.out.println("No customer named " + lname + ". Closest names:");
+                    customer_count = printMatches(similar);
+                }
                 System.out.println("Confirm the id of customer who initiated request: ");
                 pick = scanner.nextLine();
 
 		try{
 			cust_id = Integer.parseInt(pick);
-			query = "SELECT * FROM Customer " + 
-				"WHERE id = " + cust_id + " AND lname = '" + lname + "'";
-			customer_count = esql.executeQuery(query); 
+			valid = containsValue(customers, "id", String.valueOf(cust_id)) || containsId(similar, cust_id);
 		}catch(Exception e){
 		    System.err.println(e.getMessage());
 		}
 
-		if (customer_count < 1) {
+		if (!valid) {
 		    System.out.println("Customer id does not match!");
 		    return;
 		}
@@ -757,11 +6392,7 @@ public class MechanicShop{
 			System.err.println("Customer id must be a valid integer!");
 		}
 	
-                query = "SELECT model, vin FROM Car C, Customer S, Owns O "
-                        + "WHERE S.lname = '" + lname + "' AND S.id = " + cust_id + " AND O.customer_id = S.id AND O.car_vin = C.vin";
-                customer_count = esql.executeQuery(query);
-
-		if (customer_count < 1) {
+		if (esql.ownedCars(cust_id).getRowCount() == 0) {
 			System.out.println("Customer does not have a car yet. Please add a new car.");
 			AddCar(esql);
 		}
@@ -772,23 +6403,20 @@ public class MechanicShop{
                         + "WHERE S.lname = '" + lname + "' AND S.id = " + cust_id + " AND O.customer_id = S.id AND O.car_vin = C.vin";
 		*/
 
-		query = "SELECT model, vin FROM Car C, Customer S, Owns O "
-                        + "WHERE S.lname = '" + lname + "' AND S.id = " + cust_id + " AND O.customer_id = S.id AND O.car_vin = C.vin";
-                customer_count = esql.executeQueryAndPrintResult(query);
+		ColumnarResult cars = esql.ownedCars(cust_id);
+                customer_count = printResult(cars);
 
                 System.out.println("Enter the car vin in need of service:");
                 car_vin = scanner.nextLine();
 
+		valid = false;
 		try{
-			query = "SELECT model, vin FROM Car C, Customer S, Owns O "
-                        + "WHERE S.lname = '" + lname + "' AND S.id = " + cust_id + " AND O.customer_id = S.id AND O.car_vin = C.vin";
-	
-			customer_count = esql.executeQuery(query);
+			valid = containsValue(cars, "vin", car_vin);
 		}catch(Exception e){
 			System.err.println(e.getMessage());
 		}
 
-		if (customer_count < 1) {
+		if (!valid) {
 			System.out.println("Car vin does not match!");
 			return;
 		}
@@ -900,16 +6528,11 @@ public class MechanicShop{
                 System.out.println("Please enter complaint: ");
                 complain = scanner.nextLine();
         try {
-            query = "INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) " +
-                     "SELECT MAX(rid) + 1," + cust_id + ",'" + car_vin + "','" + date + "'," +
-                                     odometer + ",'" + complain + "' FROM Service_Request";
-
-            esql.executeUpdate(query);
+            int rid = esql.insertServiceRequest(cust_id, car_vin, date, odometer, complain);
 
 //Print service request
-                query = "SELECT * FROM Service_Request WHERE customer_id = '" + cust_id + "' AND complain = '"
-                        + complain + "'";
-                esql.executeQueryAndPrintResult(query);
+                query = "SELECT * FROM Service_Request WHERE rid = ?";
+                esql.executeQueryAndPrintResult(query, rid);
         }catch (Exception e){
             System.out.println(e.getMessage());
             return;
@@ -934,85 +6557,54 @@ public class MechanicShop{
 		String comment = "";
 		String bill = "";
 		String query;
-		int service_count = 0;  //used to check if service request id exists
-		int mechanic_count = 0; //used to check if mechanic id exists
-		int rowCount = 0;
 		int bill_int = 0;
+		int rid_int = 0;
+		int mid_int = 0;
 	
 		//user input service id
 		System.out.print("Enter service request id: ");
 		rid = input.nextLine();
 
 		try {
-            int convert_service;
-            convert_service = Integer.parseInt(rid);
+            rid_int = Integer.parseInt(rid);
         }catch (Exception e){
             System.err.println("Service id must be a valid number!");
             return;
         }
 		
-		//checks if service id exists
-		try {
-		    query = "SELECT rid " +
-			        "FROM   Service_Request " +
-			        "WHERE  rid = " + rid;
-
-		    service_count = esql.executeQuery(query);
-		}catch (Exception e){
-		    System.err.println(e.getMessage());
-		    return;
-		}
-
-		if (service_count == 0) {
-		    System.out.println("Service request does not exist!");
-		    return;
-		}
-
-		//checks if service request is already closed
-		try {
-            query = "SELECT c.rid " +
-                    "FROM Closed_Request c " +
-                    "WHERE c.rid = " + rid;
-		
-		    rowCount = esql.executeQuery(query);
-        }catch (Exception e){
-            System.out.println(e.getMessage());
-            return;
-        }
-
-		if (rowCount > 0) {
-		    System.out.println("Service Request " + rid + " is already closed!");
-		    return;
-		}
-
 		//user input mechanic id
 		System.out.print("Enter mechanic id: ");
         mid = input.nextLine();
 
 		try { 
-		   int convert_mech;
-		   convert_mech = Integer.parseInt(mid);  
+		   mid_int = Integer.parseInt(mid);  
 		}catch (Exception e){
 		   System.err.println("Mechanic id must be a number!");
            return;
 		}
 
-		//checks if mechanic id exists
-		try {
-            query = "SELECT id " +
-                    "FROM   Mechanic " +
-                    "WHERE  id = " + mid;
-
-            mechanic_count = esql.executeQuery(query);
-        }catch (Exception e){
-            System.err.println(e.getMessage());
-        	return;
-        }
-
-		if (mechanic_count < 1) {
-            System.out.println("Mechanic does not exist!");
+		//checks the request and the mechanic at the same time, before the rest is asked for
+		final int mechanic_id = mid_int;
+		CompletableFuture<ColumnarResult> mechanic = esql.async(new Callable<ColumnarResult>() {
+			public ColumnarResult call() throws SQLException {
+				return esql.mechanicById(mechanic_id);
+			}
+		});
+		CompletableFuture<boolean[]> request = esql.existsEachAsync(
+			new Probe("SELECT 1 FROM Service_Request WHERE rid = ?", rid_int),
+			new Probe("SELECT 1 FROM Closed_Request WHERE rid = ?", rid_int));
+		if (!await(request)[0]) {
+		    System.out.println("Service request " + rid_int + " does not exist!");
 		    return;
-        }
+		}
+		if (await(request)[1]) {
+		    System.out.println("Service request " + rid_int + " is already closed!");
+		    return;
+		}
+		if (await(mechanic).getRowCount() == 0) {
+		    System.out.println("Mechanic id " + mid_int + " does not exist!");
+		    return;
+		}
 
 		//user input month
 		System.out.print("Enter month: ");
@@ -1094,21 +6686,6 @@ public class MechanicShop{
 
 		date += String.valueOf(year);
 	
-		try {
-		    query = "SELECT rid " + 
-			    "FROM   Service_Request " + 
-			    "WHERE  rid = " + rid + " AND date <= '" + date + "'";
-
-		    rowCount = esql.executeQuery(query);
-		}catch (Exception e){
-		    System.err.println(e.getMessage());
-		}
-
-		if (rowCount == 0) {
-		    System.out.println("Closed service date must be greater than service request date!");
-		    return;
-		}
-
 		//user input comment
 		System.out.print("Enter comment for service request: ");
                 comment = input.nextLine();
@@ -1129,34 +6706,47 @@ public class MechanicShop{
 		    return;
 		}
 
+		//validates and closes the request in one transaction
+		CloseResult result;
 		try {
-		    query = "INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill) " + 
-		 	    "SELECT MAX(wid) + 1,'" + rid + "','" + mid + "','" + date + "','" +
-			            comment + "','" + bill + "' FROM Closed_Request";
-
-		    esql.executeUpdate(query);
-
-		    query = "SELECT * FROM Closed_Request WHERE " + 
-			    "rid = '" + rid + "'";
-		    esql.executeQueryAndPrintResult(query);
+		    result = esql.closeServiceRequest(rid_int, mid_int, date, comment, bill_int);
 		}catch (Exception e){
 		    System.out.println(e.getMessage());
 		    return;
 		}
 
+		switch (result.outcome) {
+		    case NOT_FOUND:
+			System.out.println("Service request does not exist!");
+			return;
+		    case ALREADY_CLOSED:
+			System.out.println("Service Request " + rid + " is already closed!");
+			return;
+		    case BAD_MECHANIC:
+			System.out.println("Mechanic does not exist!");
+			return;
+		    case DATE_BEFORE_OPEN:
+			System.out.println("Closed service date must be greater than service request date!");
+			return;
+		    default:
+			break;
+		}
+
+		//prints closed request
+		for (String column : result.columns)
+		    System.out.print(column + "\t");
+		System.out.println();
+		for (String value : result.row)
+		    System.out.print(value + "\t");
+		System.out.println();
+
 		System.out.println("Service Request " + rid + " successfully closed.");
 	}
 	
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
-		String query;
-
 		try {
-		    query = "SELECT DISTINCT fname, lname, c.bill, c.date, c.comment " + 
-			    "FROM   Customer, Service_Request s, Closed_Request c " + 
-			    "WHERE  id = s.customer_id AND s.rid = c.rid AND c.bill < 100 " +
-			    "ORDER BY date ASC";
-		  
-		    int rowCount = esql.executeQueryAndPrintResult(query);  		    
+		    int bill = readBound("the bill to stay under", BILL_THRESHOLD);
+		    int rowCount = esql.printReport(BILL_LESS_THAN, bill);
 		    System.out.println("total row(s): " + rowCount);
 		}catch (Exception e){
 		    System.err.println(e.getMessage());
@@ -1166,9 +6756,8 @@ public class MechanicShop{
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try{
-			String query = "SELECT cars.fname, cars.lname, cars.numCars FROM (SELECT Owns.customer_id, Customer.fname, Customer.lname, COUNT(*) numCars FROM Owns,Customer WHERE Customer.id = Owns.customer_id GROUP BY Owns.customer_id, Customer.fname, Customer.lname) AS cars WHERE numCars > 20";
-			
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int threshold = readBound("the number of cars to exceed", FLEET_THRESHOLD);
+			int rowCount = esql.printReport(MORE_THAN_N_CARS, threshold);
 			System.out.println ("total row(s): " + rowCount);
 		}catch(Exception e){
 			System.err.println (e.getMessage());
@@ -1177,14 +6766,27 @@ public class MechanicShop{
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try{
-			String query = "SELECT Car.make, Car.model, Car.year, Service_Request.odometer FROM Car,Service_Request WHERE Service_Request.car_vin = Car.vin AND Service_Request.odometer < 50000 AND Car.year < 1995";
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int year = readBound("the model year to stay before", YEAR_THRESHOLD);
+			int miles = readBound("the odometer reading to stay under", MILES_THRESHOLD);
+			int rowCount = esql.printReport(CARS_BEFORE_YEAR_UNDER_MILES, miles, year);
 			System.out.println ("total row(s): " + rowCount);
 		}catch(Exception e){
 			System.err.println (e.getMessage());
 		}
 	}
 	
+	/**
+	 * Reads a report bound from the user; an empty line keeps the default.
+	 */
+	static int readBound(String what, int dflt) throws IOException {
+		System.out.print("\tEnter " + what + " (default " + dflt + "): ");
+		String input = in.readLine().trim();
+		int bound = input.isEmpty() ? dflt : Integer.parseInt(input);
+		if (bound < 0)
+			throw new NumberFormatException("Value should not be negative.");
+		return bound;
+	}
+	
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		try{
             System.out.print("The number of cars you would like to see (k): ");
@@ -1193,9 +6795,16 @@ public class MechanicShop{
             if(1 > response){
                 throw new NumberFormatException("Value should be positive and larger than 0.");
             }
-            String query = "SELECT make, model, R.sreq FROM Car AS C, ( SELECT car_vin, COUNT(rid) AS sreq FROM Service_Request GROUP BY car_vin ) AS R WHERE R.car_vin = C.vin ORDER BY R.sreq DESC LIMIT "+response+";";
-            int rowCount = esql.executeQueryAndPrintResult(query);
-            System.out.println("total row(s): " + rowCount);
+            List<TopKServiceIndex.Car> cars = esql.topKCars(response);
+            if (!cars.isEmpty())
+                System.out.println("make\tmodel\tsreq\t");
+            for (TopKServiceIndex.Car car : cars)
+                System.out.println(car.make + "\t" + car.model + "\t" + car.services + "\t");
+            System.out.println("total row(s): " + cars.size());
+            if (Boolean.getBoolean("mechanicshop.topk.verify")) {
+                String mismatch = esql._topK.verify(Math.min(response, esql._topK.getMaxK()));
+                System.out.println(mismatch == null ? "top-K index matches the database." : "top-K index is stale: " + mismatch);
+            }
         }
         catch(Exception e){
             System.out.print("Your input is invalid! ");
@@ -1205,8 +6814,7 @@ public class MechanicShop{
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//9
 		try{
-			String query = "SELECT C.fname , C.lname, Total FROM Customer AS C, (SELECT sr.customer_id, SUM(CR.bill) AS Total FROM Closed_Request AS CR, Service_Request AS SR WHERE CR.rid = SR.rid GROUP BY SR.customer_id) AS A WHERE C.id=A.customer_id ORDER BY A.Total DESC;";
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int rowCount = esql.printReport(CUSTOMERS_BY_TOTAL_BILL);
 			System.out.println("total row(s): " + rowCount);
 		}
 		catch(Exception e){
@@ -1214,4 +6822,81 @@ public class MechanicShop{
 		}
 	}
 	
+	public static void Dashboard(MechanicShop esql){//11
+		try{
+			new Dashboard(esql).run(System.out);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	public static void BulkImport(MechanicShop esql, String table, String file){
+		try{
+			BulkLoader.Table target = BulkLoader.Table.forName(table);
+			System.out.println("Loading " + file + " into " + target.name + "...");
+			BulkLoader.Report report;
+			Reader csv = new FileReader(file);
+			try {
+				report = new BulkLoader(esql).load(target, csv);
+			}finally{
+				csv.close();
+			}
+			for (String reject : report.rejects)
+				System.out.println("rejected " + reject);
+			if (report.rejected > report.rejects.size())
+				System.out.println("... and " + (report.rejected - report.rejects.size()) + " more rejected row(s)");
+			System.out.println(report);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	public static void GenerateData(MechanicShop esql, String[] settings){
+		try{
+			DataGenerator.Config config = new DataGenerator.Config();
+			for (String setting : settings)
+				config.set(setting);
+			System.out.println("Generating " + config.customers + " customers...");
+			System.out.println(new DataGenerator(esql, config).generate());
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+	
+	public static void RunBenchmark(MechanicShop esql, String sizes, String threads){
+		try{
+			new Benchmark(esql, System.out).run(parseInts(sizes), parseInts(threads));
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void RunServer(MechanicShop esql, int port){
+		try{
+			final ShopServer server = new ShopServer(esql, port,
+				Integer.getInteger("mechanicshop.server.threads", ShopServer.DEFAULT_THREADS),
+				Integer.getInteger("mechanicshop.server.queueSize", ShopServer.DEFAULT_QUEUE_SIZE),
+				Long.getLong("mechanicshop.server.timeoutMillis", ShopServer.DEFAULT_TIMEOUT_MILLIS));
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					server.stop();
+				}
+			});
+			server.start();
+			System.out.println("Serving on http://localhost:" + server.getPort() + "/, stop with Ctrl-C");
+			server.awaitStop();
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	//parses a comma separated list such as 1,4,8
+	static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+	
 }